@@ -1,13 +1,34 @@
 package bb.sparkjava;
 
+import bb.BBTemplates;
 import bb.runtime.BaseBBTemplate;
+import bb.runtime.DeferredIncludes;
+import bb.runtime.OutputStreamSink;
+import bb.runtime.RenderBuffers;
+import bb.runtime.VirtualThreads;
 import spark.Request;
 import spark.Response;
+import spark.Route;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import static spark.Spark.*;
 
 public class BBSparkTemplate extends BaseBBTemplate {
 
+    private static final Logger LOG = LoggerFactory.getLogger(BBSparkTemplate.class);
+    private static final long DEFAULT_ASYNC_TIMEOUT = 60000;
     private static ThreadLocal<Request> REQUEST = new ThreadLocal<Request>();
     private static ThreadLocal<Response> RESPONSE = new ThreadLocal<Response>();
 
@@ -27,9 +48,166 @@ public class BBSparkTemplate extends BaseBBTemplate {
         afterAfter((request, response) -> {
             REQUEST.set(null);
             RESPONSE.set(null);
+            RenderBuffers.releaseAll();
+        });
+        //parallel and deferred includes, and renderAsync, see the request of the render that started them
+        BBTemplates.addAsyncExecutorWrapper(executor -> task -> {
+            Request request = REQUEST.get();
+            Response response = RESPONSE.get();
+            executor.execute(() -> {
+                //the task may also run in place, on the thread that started it
+                Request outerRequest = REQUEST.get();
+                Response outerResponse = RESPONSE.get();
+                REQUEST.set(request);
+                RESPONSE.set(response);
+                try {
+                    task.run();
+                } finally {
+                    REQUEST.set(outerRequest);
+                    RESPONSE.set(outerResponse);
+                }
+            });
         });
     }
 
+    /**
+     * Renders straight into the response instead of into a String. The header of the page's layout, if it is static
+     * text, is sent before the body is computed, and the rest follows in chunks of the flush threshold. The
+     * deferred includes of the page are sent in chunks of their own as they are done, after the rest of the page:
+     *
+     * get("/report", (req, resp) -> stream(resp, out -> Report.renderInto(out, req.queryParams("q"))));
+     */
+    public static String stream(Response response, Consumer<Appendable> template) throws IOException {
+        OutputStreamSink sink = sinkFor(response);
+        DeferredIncludes.stream(sink, template);
+        sink.flush();
+        return "";
+    }
+
+    /**
+     * Streams the page like {@link #stream}, but renders it on a virtual thread on Java 21 and later, so that
+     * blocking calls made while rendering don't hold one of the server's threads. The request goes asynchronous and
+     * the route returns at once, with the status and headers sent, so that they are set in before filters rather
+     * than by the route itself. A render failing after that ends the response where it failed, and is logged.
+     * Renders in place like {@link #stream} on older JDKs:
+     *
+     * get("/report", onVirtualThread((req, resp, out) -> Report.renderInto(out, req.queryParams("q"))));
+     */
+    public static Route onVirtualThread(StreamingRoute route) {
+        return onVirtualThread(route, DEFAULT_ASYNC_TIMEOUT);
+    }
+
+    /**
+     * @param timeoutMillis how long the response may take, after which the server ends it and the render fails
+     */
+    public static Route onVirtualThread(StreamingRoute route, long timeoutMillis) {
+        return (request, response) -> {
+            Executor virtualThreads = VirtualThreads.executorOr(null);
+            if (virtualThreads == null) {
+                return stream(response, out -> render(route, request, response, out));
+            }
+            HttpServletResponse raw = response.raw();
+            if (raw.getContentType() == null) {
+                raw.setContentType("text/html; charset=utf-8");
+            }
+            AsyncContext async = request.raw().startAsync();
+            async.setTimeout(timeoutMillis);
+            AsyncRender render = new AsyncRender(request, response, async);
+            async.addListener(render);
+            //Spark writes the route's result into responses that aren't committed yet, and ends them
+            raw.flushBuffer();
+            virtualThreads.execute(() -> render.run(route));
+            return "";
+        };
+    }
+
+    //renders an asynchronous request and ends it once the render is done, fails or times out
+    private static final class AsyncRender implements AsyncListener {
+        private final Request _request;
+        private final Response _response;
+        private final AsyncContext _async;
+        private final AtomicBoolean _ended = new AtomicBoolean();
+
+        AsyncRender(Request request, Response response, AsyncContext async) {
+            _request = request;
+            _response = response;
+            _async = async;
+        }
+
+        void run(StreamingRoute route) {
+            REQUEST.set(_request);
+            RESPONSE.set(_response);
+            try {
+                stream(_response, out -> render(route, _request, _response, out));
+            } catch (Exception e) {
+                if (_ended.get()) {
+                    //the response timed out or the client went away, and writing to it failed
+                    LOG.debug("Rendering " + _request.pathInfo() + " ended with its response", e);
+                } else {
+                    LOG.error("Rendering " + _request.pathInfo() + " on a virtual thread failed", e);
+                }
+            } finally {
+                REQUEST.remove();
+                RESPONSE.remove();
+                end();
+            }
+        }
+
+        private void end() {
+            if (_ended.compareAndSet(false, true)) {
+                try {
+                    _async.complete();
+                } catch (IllegalStateException e) {
+                    //the server has ended the request already
+                    LOG.debug("Could not complete " + _request.pathInfo(), e);
+                }
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            LOG.warn("Rendering " + _request.pathInfo() + " did not finish in " + _async.getTimeout() + "ms");
+            end();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            LOG.debug("The response to " + _request.pathInfo() + " failed", event.getThrowable());
+            end();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    private static void render(StreamingRoute route, Request request, Response response, Appendable out) {
+        try {
+            route.render(request, response, out);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static OutputStreamSink sinkFor(Response response) throws IOException {
+        OutputStreamSink sink = new OutputStreamSink(response.raw().getOutputStream(), BBTemplates.getFlushThreshold(), true);
+        sink.setEarlyFlush(true);
+        return sink;
+    }
+
+    /**
+     * A route rendering its page straight into the response
+     */
+    public interface StreamingRoute {
+        void render(Request request, Response response, Appendable out) throws Exception;
+    }
+
     @Override
     public String toS(Object o) {
         if (o instanceof RawObject) {
@@ -41,12 +219,79 @@ public class BBSparkTemplate extends BaseBBTemplate {
         }
     }
 
+    @Override
+    public void toS(Appendable buffer, Object o) throws IOException {
+        if (o instanceof RawObject) {
+            buffer.append(o.toString());
+        } else if (o instanceof CharSequence) {
+            escapeHTML(buffer, (CharSequence) o);
+        } else if (o != null) {
+            escapeHTML(buffer, o.toString());
+        }
+    }
+
+    @Override
+    public void toS(Appendable buffer, CharSequence s) throws IOException {
+        if (s != null) {
+            escapeHTML(buffer, s);
+        }
+    }
+
+    @Override
+    public void toS(Appendable buffer, char c) throws IOException {
+        String entity = entityFor(c);
+        if (entity == null) {
+            super.toS(buffer, c);
+        } else {
+            buffer.append(entity);
+        }
+    }
+
     private String escapeHTML(String str) {
-        return str.replaceAll("&", "&amp;")
-                .replaceAll("<", "&lt;")
-                .replaceAll(">", "&gt;")
-                .replaceAll("\"", "&quot")
-                .replaceAll("'", "&#39");
+        int i = 0;
+        while (i < str.length() && entityFor(str.charAt(i)) == null) {
+            i++;
+        }
+        if (i == str.length()) {
+            return str;
+        }
+        StringBuilder escaped = new StringBuilder(str.length() + 16);
+        try {
+            escapeHTML(escaped, str);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return escaped.toString();
+    }
+
+    //appends the escaped text in runs between the characters that need escaping, without copying it first
+    private static void escapeHTML(Appendable buffer, CharSequence str) throws IOException {
+        int start = 0;
+        for (int i = 0; i < str.length(); i++) {
+            String entity = entityFor(str.charAt(i));
+            if (entity != null) {
+                buffer.append(str, start, i).append(entity);
+                start = i + 1;
+            }
+        }
+        buffer.append(str, start, str.length());
+    }
+
+    private static String entityFor(char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return "&quot";
+            case '\'':
+                return "&#39";
+            default:
+                return null;
+        }
     }
 
     public Object raw(Object o) {
@@ -0,0 +1,56 @@
+package bb.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+/**
+ * Adapts a {@link RenderPublisher} to java.util.concurrent.Flow, for reactive HTTP stacks such as the JDK's own
+ * HttpClient body publishers. Only in META-INF/versions/21 of the multi-release jar, as Java 8 has no Flow:
+ *
+ * Flow.Publisher&lt;ByteBuffer&gt; page = RenderFlow.publisher(out -> Report.renderInto(out, query), executor);
+ */
+public final class RenderFlow {
+
+    private RenderFlow() {
+    }
+
+    public static Flow.Publisher<ByteBuffer> publisher(Consumer<Appendable> template, Executor executor) {
+        return publisher(new RenderPublisher(template, executor));
+    }
+
+    public static Flow.Publisher<ByteBuffer> publisher(RenderPublisher render) {
+        return subscriber -> render.subscribe(new RenderPublisher.Subscriber() {
+            @Override
+            public void onSubscribe(RenderPublisher.Subscription subscription) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                        subscription.request(n);
+                    }
+
+                    @Override
+                    public void cancel() {
+                        subscription.cancel();
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(ByteBuffer chunk) {
+                subscriber.onNext(chunk);
+            }
+
+            @Override
+            public void onError(Throwable failure) {
+                subscriber.onError(failure);
+            }
+
+            @Override
+            public void onComplete() {
+                subscriber.onComplete();
+            }
+        });
+    }
+}
@@ -0,0 +1,33 @@
+package bb.runtime;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Starts renders on virtual threads, so that blocking calls made by templates don't hold a platform thread. This is
+ * the version loaded by JDK 21 and later from META-INF/versions/21 of the multi-release jar.
+ */
+public final class VirtualThreads {
+    private static final ThreadFactory FACTORY = Thread.ofVirtual().name("bb-render-", 0).factory();
+    //virtual threads are cheap enough to start one per task, so there is no pool to size or shut down
+    private static final Executor EXECUTOR = task -> FACTORY.newThread(task).start();
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return true;
+    }
+
+    //true if the thread is virtual, which makes thread local caches pointless
+    static boolean isVirtual(Thread thread) {
+        return thread.isVirtual();
+    }
+
+    /**
+     * An executor starting a new virtual thread for each task, or the given one, which may be null, before Java 21
+     */
+    public static Executor executorOr(Executor fallback) {
+        return EXECUTOR;
+    }
+}
@@ -1,8 +1,16 @@
 package bb;
 
+import bb.runtime.DeferredMarkup;
 import bb.runtime.ILayout;
+import bb.runtime.VirtualThreads;
 
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 
 /**
  * Created by eim on 7/17/2017.
@@ -11,6 +19,12 @@ import java.util.HashMap;
 public class BBTemplates {
     private static HashMap<String, ILayout> DEFAULT_TEMPLATE_MAP;
     private static TraceCallback TRACER = (c, t) -> {}; // NO-OP tracer by default
+    private static int FLUSH_THRESHOLD = 8192;
+    private static int MAX_RETAINED_BUFFER_CAPACITY = 1 << 18;
+    private static UnaryOperator<Executor> ASYNC_EXECUTOR = executor -> executor;
+    private static final Executor DEFAULT_PARALLEL_EXECUTOR = newParallelExecutor();
+    private static Executor PARALLEL_EXECUTOR = DEFAULT_PARALLEL_EXECUTOR;
+    private static DeferredMarkup DEFERRED_MARKUP = DeferredMarkup.HTML;
 
     static {
         DEFAULT_TEMPLATE_MAP = new HashMap<>();
@@ -45,6 +59,108 @@ public class BBTemplates {
         }
     }
 
+    /**
+     * Sets how much output renderTo buffers before it writes it out and flushes the stream or writer, which bounds
+     * the memory a streaming render needs no matter how large its output is
+     */
+    public static void setFlushThreshold(int bytesOrChars) {
+        FLUSH_THRESHOLD = bytesOrChars;
+    }
+
+    public static int getFlushThreshold() {
+        return FLUSH_THRESHOLD;
+    }
+
+    /**
+     * Sets the capacity up to which render() keeps the buffers it has rendered into for the next render on the same
+     * thread, 256K characters by default. Set it above the size of the largest common pages, so that rendering them
+     * doesn't grow a new buffer every time. Buffers that grew past it are trimmed to what was rendered into them, or
+     * left to the garbage collector if that is larger still.
+     */
+    public static void setMaxRetainedBufferCapacity(int chars) {
+        MAX_RETAINED_BUFFER_CAPACITY = chars;
+    }
+
+    public static int getMaxRetainedBufferCapacity() {
+        return MAX_RETAINED_BUFFER_CAPACITY;
+    }
+
+    /**
+     * Sets how the executors passed to renderAsync, and the one parallel includes render on, are wrapped before
+     * rendering is scheduled on them, e.g. to carry the calling thread's logging or tracing context over to the
+     * thread that renders
+     */
+    public static void setAsyncExecutorWrapper(UnaryOperator<Executor> wrapper) {
+        ASYNC_EXECUTOR = wrapper;
+    }
+
+    /**
+     * Wraps the executors like {@link #setAsyncExecutorWrapper}, around the wrapping set up so far instead of
+     * replacing it, e.g. the one BBSparkTemplate.init() adds to carry the current request over
+     */
+    public static void addAsyncExecutorWrapper(UnaryOperator<Executor> wrapper) {
+        UnaryOperator<Executor> inner = ASYNC_EXECUTOR;
+        ASYNC_EXECUTOR = executor -> wrapper.apply(inner.apply(executor));
+    }
+
+    public static Executor asyncExecutor(Executor executor) {
+        return ASYNC_EXECUTOR.apply(executor);
+    }
+
+    /**
+     * Sets the executor that parallel and deferred includes are rendered on. By default they get a pool of their
+     * own, with a daemon thread per processor and a bounded queue; once that is full, includes render in place on
+     * the thread that forks them.
+     */
+    public static void setParallelExecutor(Executor executor) {
+        PARALLEL_EXECUTOR = executor;
+    }
+
+    public static void resetParallelExecutor() {
+        PARALLEL_EXECUTOR = DEFAULT_PARALLEL_EXECUTOR;
+    }
+
+    public static Executor getParallelExecutor() {
+        return PARALLEL_EXECUTOR;
+    }
+
+    /**
+     * Renders parallel and deferred includes on virtual threads, so includes blocking on I/O don't tie up the include
+     * pool. Before Java 21 this leaves the executor alone and returns false; {@link VirtualThreads#executorOr} can
+     * also be passed to renderAsync.
+     */
+    public static boolean useVirtualThreads() {
+        if (!VirtualThreads.isAvailable()) {
+            return false;
+        }
+        setParallelExecutor(VirtualThreads.executorOr(PARALLEL_EXECUTOR));
+        return true;
+    }
+
+    /**
+     * Sets the markup deferred includes are written with, HTML with an inline script swapping them in by default
+     */
+    public static void setDeferredMarkup(DeferredMarkup markup) {
+        DEFERRED_MARKUP = markup;
+    }
+
+    public static DeferredMarkup getDeferredMarkup() {
+        return DEFERRED_MARKUP;
+    }
+
+    private static Executor newParallelExecutor() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 64), task -> {
+                    Thread thread = new Thread(task, "bb-include-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public static TraceCallback getTracer() {
         return TRACER;
     }
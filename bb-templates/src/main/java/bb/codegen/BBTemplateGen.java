@@ -7,8 +7,11 @@ import bb.tokenizer.Token;
 import manifold.api.fs.IFile;
 import manifold.internal.javac.IIssue;
 
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.*;
 import java.util.List;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,7 +21,142 @@ import static bb.tokenizer.Token.TokenType.*;
 public class BBTemplateGen {
     private final String BASE_CLASS_NAME = "bb.runtime.BaseBBTemplate";
     private final String LAYOUT_INTERFACE = "bb.runtime.ILayout";
+    //keeps every static text constant well below the class file limit of 65535 bytes per string
+    private static final int MAX_CONSTANT_LENGTH = 16384;
+    //static texts at least this long are read from the template resource when static text resources are on
+    private static final int MIN_RESOURCE_TEXT_LENGTH = 1024;
+    //estimated bytecode size after which a template body is continued in another method, which keeps every
+    //generated method well below HotSpot's HugeMethodLimit of 8000 bytes, so it can still be JIT compiled
+    private static final int MAX_METHOD_SIZE = 3000;
+    //leaves room within the JVM's 255 parameter slots for the template's own parameters and wide locals
+    private static final int MAX_PASSED_LOCALS = 100;
+    //the most arguments ParallelIncludes.fork and DeferredIncludes.fork pass on to an include
+    private static final int MAX_PARALLEL_ARGS = 5;
+    private static final Pattern RENDER_CALL = Pattern.compile(
+            "([A-Za-z_$][\\w$]*(?:\\s*\\.\\s*[A-Za-z_$][\\w$]*)*)\\s*\\.\\s*render\\s*\\(");
+    private static final Pattern LOOP_DECLARATION = Pattern.compile("(?s)(.*[^\\w$\\s]|[\\w$.]+)\\s*\\b([A-Za-z_$][\\w$]*)");
+    private static final String[] PRIMITIVE_TYPES = {"boolean", "byte", "char", "short", "int", "long", "float", "double"};
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][\\w$]*");
+    private static final Set<String> STATEMENT_KEYWORDS = new HashSet<>(Arrays.asList(
+            "return", "throw", "new", "else", "case", "default", "do", "assert", "break", "continue", "goto", "yield"));
+    private static final Pattern DECLARATION = Pattern.compile(
+            "(?:final\\s+)?([A-Za-z_$][\\w$]*(?:\\s*\\.\\s*[A-Za-z_$][\\w$]*)*)(\\s*<[^;=()]*>)?((?:\\s*\\[\\s*])*)(?:\\s+|(?<=[>\\]])\\s*)([A-Za-z_$][\\w$]*)");
+    private static final Pattern DECLARATOR = Pattern.compile("([A-Za-z_$][\\w$]*)((?:\\s*\\[\\s*])*)\\s*=[^=].*", Pattern.DOTALL);
+    private static final Pattern TYPE_DECLARATION = Pattern.compile(
+            "(@[\\w$.]+\\s*)*((public|protected|private|static|final|abstract|strictfp)\\s+)*(class|interface|enum)\\s.*", Pattern.DOTALL);
     private List<BBIssue> _issues = new ArrayList<>();
+    private final Mode _mode;
+    private final boolean _sectionsAsMethods;
+    private Function<String, String> _templateSources = fqn -> null;
+    private final Map<String, Boolean> _typedToS = new HashMap<>();
+    private boolean _staticTextResources = false;
+
+    /**
+     * DEVELOPMENT templates trace their render times and remap runtime exceptions to .bb line numbers.
+     * PRODUCTION templates skip both, and are generated as final classes with final singletons, which keeps
+     * the render path small enough for the JIT to inline.
+     */
+    public enum Mode {
+        DEVELOPMENT,
+        PRODUCTION
+    }
+
+    public BBTemplateGen() {
+        this(Mode.DEVELOPMENT);
+    }
+
+    public BBTemplateGen(Mode mode) {
+        this(mode, false);
+    }
+
+    /**
+     * @param sectionsAsMethods generate sections without sections of their own as methods of the enclosing class,
+     *                          reached through a static field of the section's name, instead of as nested classes
+     */
+    public BBTemplateGen(Mode mode, boolean sectionsAsMethods) {
+        _mode = mode;
+        _sectionsAsMethods = sectionsAsMethods;
+    }
+
+    /**
+     * Supplies the source of other templates by their fully qualified name (or null if there is no such template),
+     * so production templates can inline includes of static templates
+     */
+    public void setTemplateSources(Function<String, String> templateSources) {
+        _templateSources = templateSources;
+    }
+
+    /**
+     * Makes templates render long static texts from slices of their .bb file, which they load from the classpath
+     * once, instead of from string constants of the generated class
+     */
+    public void setStaticTextResources(boolean staticTextResources) {
+        _staticTextResources = staticTextResources;
+    }
+
+    /**
+     * True if expressions of templates extending the given class can be rendered through the typed
+     * toS(Appendable, ...) overloads. That is known for the base class, and for classes on the generator's class
+     * path whose last class declaring any toS method declares toS(Object) along with toS(Appendable, CharSequence),
+     * so that a toS method it overrides or adds is never bypassed. Templates extending any other class append
+     * toS(expression), as javac picks it among the class's own toS methods.
+     */
+    boolean hasTypedToS(String superClass) {
+        if (superClass.equals(BASE_CLASS_NAME)) {
+            return true;
+        }
+        Boolean typed = _typedToS.get(superClass);
+        if (typed == null) {
+            typed = false;
+            try {
+                for (Class<?> c = loadClass(superClass.trim()); c != null; c = c.getSuperclass()) {
+                    if (declaresToS(c)) {
+                        typed = declaresMethod(c, "toS", Object.class) && declaresMethod(c, "toS", Appendable.class, CharSequence.class);
+                        break;
+                    }
+                }
+            } catch (LinkageError e) {
+                //a class it refers to is missing, so its methods can't be told
+            }
+            _typedToS.put(superClass, typed);
+        }
+        return typed;
+    }
+
+    private static Class<?> loadClass(String name) {
+        for (ClassLoader loader : new ClassLoader[]{Thread.currentThread().getContextClassLoader(), BBTemplateGen.class.getClassLoader()}) {
+            try {
+                return Class.forName(name, false, loader);
+            } catch (ClassNotFoundException | LinkageError e) {
+                //not built yet, e.g. compiled along with the template, or not on this loader's path
+            }
+        }
+        return null;
+    }
+
+    private static boolean declaresToS(Class<?> type) {
+        for (Method method : type.getDeclaredMethods()) {
+            if (method.getName().equals("toS") && !Modifier.isStatic(method.getModifiers()) && !Modifier.isPrivate(method.getModifiers())
+                    && !method.isBridge() && !method.isSynthetic()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean declaresMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            type.getDeclaredMethod(name, parameterTypes);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static boolean isHtml(String fileName) {
+        String name = fileName.toLowerCase();
+        return name.endsWith(".html.bb") || name.endsWith(".htm.bb");
+    }
 
     class ClassInfo {
         Map<Integer, ClassInfo> nestedClasses = new HashMap<>();
@@ -32,8 +170,14 @@ public class BBTemplateGen {
         int depth;
         boolean isLayout = false;
         boolean hasLayout = false;
+        //a section generated as a method of the enclosing class
+        boolean asMethod = false;
         Directive layoutDir;
         int contentPos;
+        //escaped java string literals of the static text constants of this class, STATIC_0, STATIC_1, ...
+        List<String> constants = new ArrayList<>();
+        //UTF-8 byte offsets and lengths of the slices of the template resource rendered by this class, STATIC_TEXT_0, ...
+        List<int[]> slices = new ArrayList<>();
 
         //only for the outermost class
         ClassInfo(Iterator<Directive> dirIterator, String name, String fileName, Integer endTokenPos, boolean outermost) {
@@ -57,6 +201,7 @@ public class BBTemplateGen {
             this.superClass = superClass;
 
             fillClassInfo(dirIterator);
+            asMethod = _sectionsAsMethods && nestedClasses.isEmpty();
         }
 
         void fillClassInfo(Iterator<Directive> dirIterator) {
@@ -148,11 +293,13 @@ public class BBTemplateGen {
         IMPORT,     //className
         EXTENDS,    //className
         PARAMS,     //           params, paramsList
-        INCLUDE,    //className, params,            conditional
+        INCLUDE,    //className, params,            conditional, parallel, deferred
         SECTION,    //className, params, paramsList
         END_SECTION,//
         CONTENT,    //
         LAYOUT,      //className
+        FOR,        //loopType, loopVariable, loopSource
+        END_FOR,    //
         ERRANT      //the directive is invalid
     }
 
@@ -180,6 +327,17 @@ public class BBTemplateGen {
         //iff include
         String conditional;
 
+        //iff include, true for include parallel
+        boolean parallel;
+
+        //iff include, true for include deferred
+        boolean deferred;
+
+        //iff for "[loopType] [loopVariable] : [loopSource]"
+        String loopType;
+        String loopVariable;
+        String loopSource;
+
         Directive(int tokenPos, Token token, List<Token> tokens) {
             assert (token.getType() == DIRECTIVE);
             this.tokenPos = tokenPos;
@@ -208,6 +366,10 @@ public class BBTemplateGen {
                 dirType = CONTENT;
             } else if (content.trim().matches("layout.*")) {
                 dirType = LAYOUT;
+            } else if (content.matches("(?s)for\\s.*")) {
+                dirType = FOR;
+            } else if (content.trim().matches("end for")) {
+                dirType = END_FOR;
             } else {
                 addError("Unsupported Directive Type", token.getLine());
                 dirType = ERRANT;
@@ -229,6 +391,10 @@ public class BBTemplateGen {
                     break;
                 case INCLUDE:
                     fillIncludeVars();
+                    if ((parallel || deferred) && params != null && !params.trim().isEmpty() && splitTopLevel(params).size() > MAX_PARALLEL_ARGS) {
+                        addError("Invalid include directive, " + (parallel ? "parallel" : "deferred") + " includes take at most "
+                                + MAX_PARALLEL_ARGS + " arguments", token.getLine());
+                    }
                     break;
                 case SECTION:
                     String[] temp = token.getContent().substring(7).trim().split("\\(", 2);
@@ -247,6 +413,11 @@ public class BBTemplateGen {
                 case LAYOUT:
                     className = token.getContent().substring(6).trim();
                     break;
+                case FOR:
+                    fillLoopVars();
+                    break;
+                case END_FOR:
+                    break;
                 case ERRANT:
                     break;
             }
@@ -255,17 +426,28 @@ public class BBTemplateGen {
         /**
          * Helper method: Given that the type of token is INCLUDE, will parse through the content of the token
          * and accordingly set className, params, and conditional. The format of an include statement is as follows:
-         * <%@ include templateNameHere[(optional-params)][if(optional conditional)] %>
+         * <%@ include [parallel |deferred ]templateNameHere[(optional-params)][if(optional conditional)] %>
          * Note that in the if statement, parentheses around the conditional are optional.
          */
         private void fillIncludeVars() {
             String content = token.getContent().substring(8).trim();
+            if (content.matches("(?s)parallel\\s+\\S.*")) {
+                parallel = true;
+                content = content.substring(8).trim();
+            } else if (content.matches("(?s)deferred\\s+\\S.*")) {
+                deferred = true;
+                content = content.substring(8).trim();
+            }
             int index = 0;
             while (index < content.length()) {
                 if (content.charAt(index) == '(') {
+                    int close = closingParen(content, index);
+                    if (close < 0) {
+                        close = content.indexOf(')');
+                    }
                     this.className = content.substring(0, index).trim();
-                    this.params = content.substring(index + 1, content.indexOf(')'));
-                    fillConditional(content.substring(content.indexOf(')') + 1).trim());
+                    this.params = content.substring(index + 1, close);
+                    fillConditional(content.substring(close + 1).trim());
                     return;
                 } else if (index < content.length() - 2 && content.charAt(index) == ' ' && content.charAt(index + 1) == 'i' && content.charAt(index + 2) == 'f') {
                     this.className = content.substring(0, index).trim();
@@ -278,6 +460,24 @@ public class BBTemplateGen {
             this.className = content;
         }
 
+        /**
+         * Helper method: Given that the type of token is FOR, sets loopType, loopVariable and loopSource from
+         * <%@ for Type name : source %>, where the source is an Iterable or an array
+         */
+        private void fillLoopVars() {
+            String content = token.getContent().trim().substring(3).trim();
+            int colon = content.indexOf(':');
+            Matcher declaration = colon < 0 ? null : LOOP_DECLARATION.matcher(content.substring(0, colon).trim());
+            if (declaration == null || !declaration.matches() || content.substring(colon + 1).trim().isEmpty()) {
+                addError("Invalid for directive, expected <%@ for Type name : source %>", token.getLine());
+                dirType = ERRANT;
+                return;
+            }
+            loopType = declaration.group(1).trim();
+            loopVariable = declaration.group(2);
+            loopSource = content.substring(colon + 1).trim();
+        }
+
         /**
          * Helper Method: Takes in a conditional, properly parses it, and sets this.conditional accordingly.
          * @param conditional A statement as follows: if([INSERT CONDITIONAL HERE]), where parentheses are
@@ -360,7 +560,9 @@ public class BBTemplateGen {
                     }
                 } else if (currentToken.getType() == DIRECTIVE) {
                     Directive cur = new Directive(i, currentToken, tokens);
-                    if (cur.dirType == PARAMS) {
+                    if (cur.dirType == FOR && name.equals(cur.loopVariable)) {
+                        return cur.loopType;
+                    } else if (cur.dirType == PARAMS) {
                         String[][] outerClassParameters = cur.paramsList;
                         for(String[] currentParams: outerClassParameters) {
                             String parameter = currentParams[1];
@@ -380,26 +582,206 @@ public class BBTemplateGen {
     class FileGenerator {
         private BBStringBuilder sb = new BBStringBuilder();
         private ClassInfo currClass;
+        private ClassInfo rootClass;
+        private String packageName;
+        //the static text of included templates by name, or null for templates that can't be inlined
+        private Map<String, String> staticTemplates = new HashMap<>();
         private List<Token> tokens;
+        private String source;
         private Map<Integer, Directive> dirMap;
+        //parts of split template bodies still to be generated once the method they continue is closed
+        private List<Continuation> continuations = new ArrayList<>();
+
+        /**
+         * A method a template body is generated into. A body too large for one method is continued in numbered
+         * methods named after it (renderImpl$1, renderImpl$2, ...), each taking the parameters of the method
+         * before it followed by the locals declared there.
+         */
+        private class BodyMethod {
+            final String baseName;
+            final int part;
+            //the parameters of the original method, which every part takes before the locals
+            final String baseParams;
+            final String baseArgs;
+            final String params;
+            final String args;
+
+            BodyMethod(String baseName, String params, String args) {
+                this(baseName, 0, params, args, params, args);
+            }
+
+            private BodyMethod(String baseName, int part, String baseParams, String baseArgs, String params, String args) {
+                this.baseName = baseName;
+                this.part = part;
+                this.baseParams = baseParams;
+                this.baseArgs = baseArgs;
+                this.params = params;
+                this.args = args;
+            }
+
+            String name() {
+                return part == 0 ? baseName : baseName + "$" + part;
+            }
+
+            BodyMethod next(List<String[]> locals) {
+                StringBuilder params = new StringBuilder(baseParams);
+                StringBuilder args = new StringBuilder(baseArgs);
+                for (String[] local : locals) {
+                    params.append(", ").append(local[0]).append(" ").append(local[1]);
+                    args.append(", ").append(local[1]);
+                }
+                return new BodyMethod(baseName, part + 1, baseParams, baseArgs, params.toString(), args.toString());
+            }
+        }
+
+        //a token position at which a template body continues in the next method
+        private class Split {
+            final int tokenPos;
+            //type and name of the top level locals the rest of the body still uses
+            final List<String[]> locals;
+
+            Split(int tokenPos, List<String[]> locals) {
+                this.tokenPos = tokenPos;
+                this.locals = locals;
+            }
+        }
+
+        private class Continuation {
+            final BodyMethod method;
+            final int startPos;
+            final Integer endPos;
+            final List<Split> splits;
+
+            Continuation(BodyMethod method, int startPos, Integer endPos, List<Split> splits) {
+                this.method = method;
+                this.startPos = startPos;
+                this.endPos = endPos;
+                this.splits = splits;
+            }
+        }
+
+        /**
+         * Follows the top level statements of a template body across its statement tokens, collecting the locals
+         * they declare. A body can only be split where no statement or block is open.
+         */
+        private class StatementScanner {
+            private int depth = 0;
+            private int parens = 0;
+            private StringBuilder statement = new StringBuilder();
+            //a top level block just closed, which ends the statement unless a ; follows (a lambda or initializer)
+            private boolean blockClosed = false;
+            //set once a local is declared that can't be handed to another method
+            private boolean unsplittable = false;
+            private List<String[]> locals = new ArrayList<>();
+
+            void scan(String code) {
+                int i = 0;
+                while (i < code.length()) {
+                    char c = code.charAt(i);
+                    if (blockClosed && !Character.isWhitespace(c)) {
+                        blockClosed = false;
+                        if (c != ';') {
+                            statement.setLength(0);
+                        }
+                    }
+                    int end = skipLiteral(code, i);
+                    if (end > i) {
+                        statement.append(code, i, end);
+                        i = end;
+                        continue;
+                    }
+                    if (code.startsWith("//", i)) {
+                        int newLine = code.indexOf('\n', i);
+                        i = newLine < 0 ? code.length() : newLine;
+                        continue;
+                    } else if (code.startsWith("/*", i)) {
+                        int close = code.indexOf("*/", i + 2);
+                        i = close < 0 ? code.length() : close + 2;
+                        statement.append(' ');
+                        continue;
+                    }
+                    statement.append(c);
+                    if (c == '(') {
+                        parens++;
+                    } else if (c == ')') {
+                        parens--;
+                    } else if (c == '{') {
+                        if (depth == 0 && TYPE_DECLARATION.matcher(statement.toString().trim()).matches()) {
+                            unsplittable = true;
+                        }
+                        depth++;
+                    } else if (c == '}') {
+                        depth--;
+                        blockClosed = depth == 0;
+                    } else if (c == ';' && depth == 0 && parens == 0) {
+                        List<String[]> declared = parseDeclarations(statement.substring(0, statement.length() - 1));
+                        if (declared == null) {
+                            unsplittable = true;
+                        } else {
+                            locals.addAll(declared);
+                        }
+                        statement.setLength(0);
+                    }
+                    i++;
+                }
+            }
+
+            boolean atBoundary() {
+                return !unsplittable && depth == 0 && parens == 0 && (blockClosed || statement.toString().trim().isEmpty());
+            }
+
+            List<String[]> takeLocals() {
+                List<String[]> taken = locals;
+                locals = new ArrayList<>();
+                return taken;
+            }
+        }
 
         private class BBStringBuilder {
             private final String INDENT = "    ";
             private StringBuilder sb = new StringBuilder();
+            private int lineCount = 0;
+            //bb line of every java line written while a line map is being recorded (see makeFuncContent)
+            private List<Integer> bbLineNumbers = null;
+            private int currentBBLine;
 
             BBStringBuilder append(String content) {
                 for (int i = 0; i < currClass.depth; i++) {
                     sb.append(INDENT);
                 }
-                sb.append(content);
-                return this;
+                return reAppend(content);
             }
 
             BBStringBuilder reAppend(String content) {
                 sb.append(content);
+                for (int i = content.indexOf('\n'); i >= 0; i = content.indexOf('\n', i + 1)) {
+                    lineCount++;
+                    if (bbLineNumbers != null) {
+                        bbLineNumbers.add(currentBBLine);
+                    }
+                }
                 return this;
             }
 
+            //the (1-based) java line number of the next line to be written
+            int nextLine() {
+                return lineCount + 1;
+            }
+
+            void startLineMap() {
+                bbLineNumbers = new ArrayList<>();
+            }
+
+            void setBBLine(int line) {
+                currentBBLine = line;
+            }
+
+            List<Integer> endLineMap() {
+                List<Integer> lineMap = bbLineNumbers;
+                bbLineNumbers = null;
+                return lineMap;
+            }
+
             public String toString() {
                 return sb.toString();
             }
@@ -416,11 +798,21 @@ public class BBTemplateGen {
 
             BBTokenizer tokenizer = new BBTokenizer();
             this.tokens = tokenizer.tokenize(source);
+            this.source = source;
             _issues.addAll(tokenizer.getIssues());
 
             List<Directive> dirList = getDirectivesList(tokens);
+            //the markup that swaps deferred includes into their placeholders is HTML, so other templates include in place
+            if (!isHtml(fileName)) {
+                for (Directive dir : dirList) {
+                    dir.deferred = false;
+                }
+            }
+            checkLoops(dirList);
             this.dirMap = getDirectivesMap(dirList);
             this.currClass = new ClassInfo(dirList.iterator(), className, fileName, tokens.size() - 1, true);
+            this.rootClass = currClass;
+            this.packageName = packageName.toString();
 
             buildFile(packageName.toString(), dirList);
         }
@@ -454,13 +846,24 @@ public class BBTemplateGen {
 
         private void addRenderImpl() {
 
+            BodyMethod method;
             if (currClass.paramsList == null) {
                 sb.append("    public void renderImpl(Appendable buffer, ILayout overrideLayout) {\n");
+                method = new BodyMethod("renderImpl", "Appendable buffer, ILayout overrideLayout", "buffer, overrideLayout");
             } else {
                 sb.append("    public void renderImpl(Appendable buffer, ILayout overrideLayout, ").reAppend(currClass.params).reAppend(") {\n");
+                String args = "buffer, overrideLayout";
+                for (String[] param : currClass.paramsList) {
+                    args += ", " + param[1];
+                }
+                method = new BodyMethod("renderImpl", "Appendable buffer, ILayout overrideLayout, " + currClass.params, args);
             }
+            List<Split> splits = currClass.isLayout ? Collections.<Split>emptyList() : planSplits(currClass.startTokenPos, currClass.endTokenPos);
 
-            boolean needsToCatchIO = currClass.depth == 0;
+            boolean forksIncludes = !currClass.isLayout && (hasForkedIncludes(currClass.startTokenPos, currClass.endTokenPos, false)
+                    || hasForkedIncludes(currClass.startTokenPos, currClass.endTokenPos, true));
+            boolean needsToCatchIO = currClass.depth == 0 || !splits.isEmpty() || !getSectionMethods().isEmpty() || forksIncludes
+                    || inlinesIncludes(currClass.startTokenPos, currClass.endTokenPos);
 
             if (!needsToCatchIO) {
                 needsToCatchIO = containsStringContentOrExpr(tokens, currClass.startTokenPos - 1, currClass.endTokenPos);
@@ -473,12 +876,18 @@ public class BBTemplateGen {
             if (currClass.isLayout) {
                 sb.append("            INSTANCE.header(buffer);\n")
                         .append("            INSTANCE.footer(buffer);\n");
+            } else if (_mode == Mode.PRODUCTION) {
+                sb.append("            beforeRender(buffer, overrideLayout, ").reAppend(String.valueOf(currClass.depth == 0)).reAppend(");\n");
+
+                makeForkingFuncContent(currClass.startTokenPos, currClass.endTokenPos, method, splits);
+
+                sb.append("            afterRender(buffer, overrideLayout, ").reAppend(String.valueOf(currClass.depth == 0)).reAppend(");\n");
             } else {
                 sb.append("            beforeRender(buffer, overrideLayout, ").reAppend(String.valueOf(currClass.depth == 0)).reAppend(");\n");
 
                 sb.append("            long startTime = System.nanoTime();\n");
 
-                makeFuncContent(currClass.startTokenPos, currClass.endTokenPos);
+                makeForkingFuncContent(currClass.startTokenPos, currClass.endTokenPos, method, splits);
 
                 sb.append("            long endTime = System.nanoTime();\n");
                 sb.append("            long duration = (endTime - startTime)/1000000;\n");
@@ -495,68 +904,179 @@ public class BBTemplateGen {
 
             //close the renderImpl
             sb.append("    }\n\n");
+            addContinuations();
         }
 
         private void addRender() {
-            if (currClass.paramsList == null) {
+            //a fully static production section always renders the same text, so render() returns it directly
+            String staticContent = _mode == Mode.PRODUCTION && currClass.depth > 0 ? getStaticContent() : null;
+            if (staticContent != null) {
+                String constant = makeConstant(staticContent);
+                sb.append("\n")
+                        .append("    public static String render(").reAppend(currClass.params == null ? "" : currClass.params).reAppend(") {\n")
+                        .append("        return ").reAppend(constant).reAppend(";\n")
+                        .append("    }\n\n");
+                sb.append("\n")
+                        .append("    public static String render(ILayout overrideLayout").reAppend(currClass.params == null ? "" : ", " + currClass.params).reAppend(") {\n")
+                        .append("        return ").reAppend(constant).reAppend(";\n")
+                        .append("    }\n\n");
+            } else if (currClass.paramsList == null) {
                 //without layout
                 sb.append("\n")
                         .append("    public static String render() {\n")
-                        .append("        StringBuilder sb = new StringBuilder();\n")
+                        .append("        StringBuilder sb = INSTANCE.newBuffer();\n")
                         .append("        renderInto(sb);\n")
-                        .append("        return sb.toString();\n")
+                        .append("        return INSTANCE.recordSize(sb);\n")
                         .append("    }\n\n");
                 //with layout
                 sb.append("\n")
                         .append("    public static String render(ILayout overrideLayout) {\n")
-                        .append("        StringBuilder sb = new StringBuilder();\n")
+                        .append("        StringBuilder sb = INSTANCE.newBuffer();\n")
                         .append("        renderInto(sb, overrideLayout);\n")
-                        .append("        return sb.toString();\n")
+                        .append("        return INSTANCE.recordSize(sb);\n")
                         .append("    }\n\n");
             } else {
                 //without layout
                 sb.append("\n")
                         .append("    public static String render(").reAppend(currClass.params + ") {\n")
-                        .append("        StringBuilder sb = new StringBuilder();\n")
+                        .append("        StringBuilder sb = INSTANCE.newBuffer();\n")
                         .append("        renderInto(sb");
                 for (String[] p : currClass.paramsList) {
                     sb.reAppend(", ").reAppend(p[1]);
                 }
                 sb.reAppend(");\n")
-                        .append("        return sb.toString();\n")
+                        .append("        return INSTANCE.recordSize(sb);\n")
                         .append("    }\n\n");
                 //with Layout
                 sb.append("\n")
                         .append("    public static String render(ILayout overrideLayout, ").reAppend(currClass.params + ") {\n")
-                        .append("        StringBuilder sb = new StringBuilder();\n")
+                        .append("        StringBuilder sb = INSTANCE.newBuffer();\n")
                         .append("        renderInto(sb, overrideLayout");
                 for (String[] p : currClass.paramsList) {
                     sb.reAppend(", ").reAppend(p[1]);
                 }
                 sb.reAppend(");\n")
-                        .append("        return sb.toString();\n")
+                        .append("        return INSTANCE.recordSize(sb);\n")
                         .append("    }\n\n");
             }
+            if (currClass.depth > 0) {
+                //sections only get render and renderInto, the other entry points are for whole templates
+                return;
+            }
+            addRenderResult(staticContent == null ? null : makeConstant(staticContent));
+            String params = currClass.paramsList == null ? "" : ", " + currClass.params;
+            String args = "";
+            if (currClass.paramsList != null) {
+                for (String[] param : currClass.paramsList) {
+                    args += ", " + param[1];
+                }
+            }
+            addRenderAsync("    ", "static ", params, args);
+        }
+
+        //renderAsync overloads that render on the given executor and complete with the output
+        private void addRenderAsync(String indent, String modifiers, String params, String args) {
+            //without Layout
+            sb.append(indent).reAppend("public ").reAppend(modifiers).reAppend("java.util.concurrent.CompletableFuture<String> renderAsync(java.util.concurrent.Executor executor")
+                    .reAppend(params).reAppend(") {\n")
+                    .append(indent).reAppend("    return renderAsync(executor, null").reAppend(args).reAppend(");\n")
+                    .append(indent).reAppend("}\n\n");
+            //with Layout
+            sb.append(indent).reAppend("public ").reAppend(modifiers).reAppend("java.util.concurrent.CompletableFuture<String> renderAsync(java.util.concurrent.Executor executor, ILayout overrideLayout")
+                    .reAppend(params).reAppend(") {\n")
+                    .append(indent).reAppend("    return java.util.concurrent.CompletableFuture.supplyAsync(() -> render(overrideLayout").reAppend(args)
+                    .reAppend("), BBTemplates.asyncExecutor(executor));\n")
+                    .append(indent).reAppend("}\n\n");
+        }
+
+        //renderResult() variants of render() that hand out the rendered buffer instead of copying it into a String
+        private void addRenderResult(String constant) {
+            String params = currClass.paramsList == null ? "" : ", " + currClass.params;
+            String args = "";
+            if (currClass.paramsList != null) {
+                for (String[] param : currClass.paramsList) {
+                    args += ", " + param[1];
+                }
+            }
+            //without layout
+            sb.append("    public static RenderResult renderResult(").reAppend(params.isEmpty() ? "" : params.substring(2)).reAppend(") {\n")
+                    .append("        return renderResult(null").reAppend(args).reAppend(");\n")
+                    .append("    }\n\n");
+            //with layout
+            sb.append("    public static RenderResult renderResult(ILayout overrideLayout").reAppend(params).reAppend(") {\n");
+            if (constant != null) {
+                sb.append("        return RenderResult.of(").reAppend(constant).reAppend(");\n");
+            } else {
+                sb.append("        StringBuilder sb = INSTANCE.newBuffer();\n")
+                        .append("        renderInto(sb, overrideLayout").reAppend(args).reAppend(");\n")
+                        .append("        return INSTANCE.recordResult(sb);\n");
+            }
+            sb.append("    }\n\n");
         }
 
         private void addFileHeader() {
+            String modifiers = _mode == Mode.PRODUCTION ? "final " : "";
             sb.append("\n");
             if (currClass.depth == 0) {
                 if (currClass.isLayout) {
-                    sb.append("public class ").reAppend(currClass.name).reAppend(" extends ").reAppend(currClass.superClass).reAppend(" implements ").reAppend(LAYOUT_INTERFACE).reAppend(" {\n");
+                    sb.append("public ").reAppend(modifiers).reAppend("class ").reAppend(currClass.name).reAppend(" extends ").reAppend(currClass.superClass).reAppend(" implements ").reAppend(LAYOUT_INTERFACE).reAppend(" {\n");
                 } else {
-                    sb.append("public class ").reAppend(currClass.name).reAppend(" extends ").reAppend(currClass.superClass).reAppend(" {\n");
+                    sb.append("public ").reAppend(modifiers).reAppend("class ").reAppend(currClass.name).reAppend(" extends ").reAppend(currClass.superClass).reAppend(" {\n");
                 }
             } else {
-                sb.append("public static class ").reAppend(currClass.name).reAppend(" extends ").reAppend(currClass.superClass).reAppend(" {\n");
+                sb.append("public static ").reAppend(modifiers).reAppend("class ").reAppend(currClass.name).reAppend(" extends ").reAppend(currClass.superClass).reAppend(" {\n");
             }
-            sb.append("    private static ").reAppend(currClass.name).reAppend(" INSTANCE = new ").reAppend(currClass.name).reAppend("();\n");
+            sb.append("    private static ").reAppend(modifiers).reAppend(currClass.name).reAppend(" INSTANCE = new ").reAppend(currClass.name).reAppend("();\n");
             sb.append("    private ").reAppend(currClass.name).reAppend("(){\n");
             if (currClass.hasLayout) {
                 sb.append("        setLayout(").reAppend(currClass.layoutDir.className).reAppend(".asLayout());\n");
             }
+            int staticLength = getStaticLength(currClass);
+            if (staticLength > 0) {
+                sb.append("        setSizeEstimate(").reAppend(String.valueOf(staticLength)).reAppend(");\n");
+            }
+            if (currClass.isLayout) {
+                String header = getStaticContent(currClass.startTokenPos, currClass.contentPos - 1);
+                String footer = getStaticContent(currClass.contentPos + 1, currClass.endTokenPos);
+                if (header != null && footer != null) {
+                    sb.append("        setStaticLayoutText(").reAppend(makeConstant(header)).reAppend(", ").reAppend(makeConstant(footer)).reAppend(");\n");
+                }
+            }
             sb.append("}\n\n");
         }
+        private void addRenderTo() {
+            String params = currClass.paramsList == null ? "" : ", " + currClass.params;
+            String args = "";
+            if (currClass.paramsList != null) {
+                for (String[] param : currClass.paramsList) {
+                    args += ", " + param[1];
+                }
+            }
+            addRenderTo("    ", "static ", params, args);
+        }
+
+        //renderTo overloads that stream into an OutputStream or a Writer through a bounded, flushing sink, followed by
+        //the deferred includes of all the templates rendered
+        private void addRenderTo(String indent, String modifiers, String params, String args) {
+            String[][] targets = {{"java.io.OutputStream", "OutputStreamSink"}, {"java.io.Writer", "WriterSink"}};
+            for (String[] target : targets) {
+                //without Layout
+                sb.append(indent).reAppend("public ").reAppend(modifiers).reAppend("void renderTo(").reAppend(target[0]).reAppend(" out").reAppend(params).reAppend(") {\n")
+                        .append(indent).reAppend("    renderTo(out, null").reAppend(args).reAppend(");\n")
+                        .append(indent).reAppend("}\n\n");
+                //with Layout
+                sb.append(indent).reAppend("public ").reAppend(modifiers).reAppend("void renderTo(").reAppend(target[0]).reAppend(" out, ILayout overrideLayout").reAppend(params).reAppend(") {\n")
+                        .append(indent).reAppend("    ").reAppend(target[1]).reAppend(" sink = new ").reAppend(target[1]).reAppend("(out, BBTemplates.getFlushThreshold(), true);\n")
+                        .append(indent).reAppend("    try {\n")
+                        .append(indent).reAppend("        DeferredIncludes.stream(sink, $sink -> renderInto($sink, overrideLayout").reAppend(args).reAppend("));\n")
+                        .append(indent).reAppend("        sink.flush();\n")
+                        .append(indent).reAppend("    } catch (IOException e) {\n")
+                        .append(indent).reAppend("        throw new RuntimeException(e);\n")
+                        .append(indent).reAppend("    }\n")
+                        .append(indent).reAppend("}\n\n");
+            }
+        }
+
         private void addRenderInto() {
             if (currClass.paramsList == null) {
                 //without Layout
@@ -592,18 +1112,259 @@ public class BBTemplateGen {
             addFileHeader();
             addRender();
             addRenderInto();
+            if (currClass.depth == 0) {
+                addRenderTo();
+            }
             addRenderImpl();
+            if (currClass.depth > 0 && eachItemType(currClass) != null) {
+                addRenderEachInto();
+                addRenderEachImpl(currClass, "renderImpl$$each", _mode != Mode.PRODUCTION);
+            }
             if (currClass.isLayout) {
                 addHeaderAndFooter();
             }
-            for (ClassInfo nested : currClass.nestedClasses.values()) {
-                currClass = nested;
-                makeClassContent();
+            for (ClassInfo section : getSectionMethods()) {
+                addSectionMethod(section);
+            }
+            addSectionDispatchers();
+            addConstants();
+            ClassInfo outerClass = currClass;
+            for (ClassInfo nested : outerClass.nestedClasses.values()) {
+                if (!nested.asMethod) {
+                    currClass = nested;
+                    makeClassContent();
+                }
             }
+            currClass = outerClass;
             //close class
             sb.append("}\n");
         }
 
+        //the sections of the current class that are generated as its methods, in template order
+        private List<ClassInfo> getSectionMethods() {
+            List<ClassInfo> sections = new ArrayList<>();
+            for (ClassInfo nested : new TreeMap<>(currClass.nestedClasses).values()) {
+                if (nested.asMethod) {
+                    sections.add(nested);
+                }
+            }
+            return sections;
+        }
+
+        /**
+         * Generates a section's body as a method of the current class. Its static text is registered with the
+         * current class, so the section needs no constants or singleton of its own.
+         */
+        private void addSectionMethod(ClassInfo section) {
+            String params = "Appendable buffer, ILayout overrideLayout";
+            String args = "buffer, overrideLayout";
+            if (section.paramsList != null) {
+                params += ", " + section.params;
+                for (String[] param : section.paramsList) {
+                    args += ", " + param[1];
+                }
+            }
+            BodyMethod method = new BodyMethod("renderImpl$" + section.name, params, args);
+            sb.append("    void ").reAppend(method.name()).reAppend("(").reAppend(params).reAppend(") throws IOException {\n")
+                    .append("        beforeRender(buffer, overrideLayout, false);\n");
+            makeForkingFuncContent(section.startTokenPos, section.endTokenPos, method, planSplits(section.startTokenPos, section.endTokenPos));
+            sb.append("        afterRender(buffer, overrideLayout, false);\n")
+                    .append("    }\n\n");
+            addContinuations();
+            if (eachItemType(section) != null) {
+                addRenderEachImpl(section, "renderImpl$" + section.name + "$$each", false);
+            }
+        }
+
+        /**
+         * The type a single parameter section takes its items as in renderEachInto(), or null if it has no such
+         * method. Only sections of a reference type that their template calls renderEachInto() on get one, as
+         * a primitive one would have to unbox every item.
+         */
+        private String eachItemType(ClassInfo section) {
+            if (section.paramsList == null || section.paramsList.length != 1 || section.paramsList[0][0].endsWith("...")
+                    || Arrays.asList(PRIMITIVE_TYPES).contains(section.paramsList[0][0])) {
+                return null;
+            }
+            Pattern call = Pattern.compile("\\b" + Pattern.quote(section.name) + "\\s*\\.\\s*renderEachInto\\s*\\(");
+            for (Token token : tokens) {
+                if ((token.getType() == STATEMENT || token.getType() == EXPRESSION) && call.matcher(token.getContent()).find()) {
+                    return section.paramsList[0][0];
+                }
+            }
+            return null;
+        }
+
+        private void addRenderEachInto() {
+            sb.append("    public static void renderEachInto(Appendable buffer, Iterable<? extends ").reAppend(eachItemType(currClass)).reAppend("> items) {\n")
+                    .append("        try {\n")
+                    .append("            INSTANCE.renderImpl$$each(buffer, null, items);\n")
+                    .append("        } catch (IOException e) {\n")
+                    .append("            throw new RuntimeException(e);\n")
+                    .append("        }\n")
+                    .append("    }\n\n");
+        }
+
+        /**
+         * Generates the body of a single parameter section once more, run for every item of an Iterable. The
+         * bookkeeping of a render happens once for the whole batch, so each item only costs its markup. Random
+         * access lists are walked by index, like in a for directive.
+         */
+        private void addRenderEachImpl(ClassInfo section, String name, boolean timed) {
+            String itemType = eachItemType(section);
+            String[] param = section.paramsList[0];
+            BodyMethod method = new BodyMethod(name, "Appendable buffer, ILayout overrideLayout, " + section.params, "buffer, overrideLayout, " + param[1]);
+            sb.append("    void ").reAppend(name).reAppend("(Appendable buffer, ILayout overrideLayout, Iterable<? extends ").reAppend(itemType).reAppend("> $items) throws IOException {\n")
+                    .append("        beforeRender(buffer, overrideLayout, false);\n");
+            if (timed) {
+                sb.append("        long startTime = System.nanoTime();\n");
+            }
+            openForkedIncludes(section.startTokenPos, section.endTokenPos, "        ");
+            sb.append("        Iterable<? extends ").reAppend(itemType).reAppend("> $each = bb.runtime.Loops.iterable($items);\n")
+                    .append("        java.util.List<? extends ").reAppend(itemType).reAppend("> $list = bb.runtime.Loops.randomAccess($each);\n")
+                    .append("        java.util.Iterator<? extends ").reAppend(itemType).reAppend("> $iterator = $list == null ? $each.iterator() : null;\n")
+                    .append("        int $size = $list == null ? -1 : $list.size();\n")
+                    .append("        for (int $index = 0; $list == null ? $iterator.hasNext() : $index < $size; $index++) {\n")
+                    .append("            ").reAppend(param[0]).reAppend(" ").reAppend(param[1]).reAppend(" = $list == null ? $iterator.next() : $list.get($index);\n");
+            makeFuncContent(section.startTokenPos, section.endTokenPos, method, planSplits(section.startTokenPos, section.endTokenPos));
+            sb.append("        }\n");
+            joinForkedIncludes(section.startTokenPos, section.endTokenPos, "        ");
+            if (timed) {
+                sb.append("        long duration = (System.nanoTime() - startTime)/1000000;\n")
+                        .append("        afterRender(buffer, overrideLayout, false, duration);\n");
+            } else {
+                sb.append("        afterRender(buffer, overrideLayout, false);\n");
+            }
+            sb.append("    }\n\n");
+            addContinuations();
+        }
+
+        /**
+         * Keeps the Template.section.render(...) syntax working for sections generated as methods: each such
+         * section is a static field holding a dispatcher, with one dispatcher class per distinct parameter list
+         * that switches on the section it stands for. Like section classes, dispatchers only have render and
+         * renderInto, which keeps them small.
+         */
+        private void addSectionDispatchers() {
+            Map<String, List<ClassInfo>> bySignature = new LinkedHashMap<>();
+            for (ClassInfo section : getSectionMethods()) {
+                //sections with renderEachInto() get dispatchers of their own, as the others have no batch to switch to
+                StringBuilder signature = new StringBuilder(eachItemType(section) == null ? "" : "each:");
+                if (section.paramsList != null) {
+                    for (String[] param : section.paramsList) {
+                        signature.append(param[0]).append(",");
+                    }
+                }
+                bySignature.computeIfAbsent(signature.toString(), k -> new ArrayList<>()).add(section);
+            }
+            int dispatcher = 0;
+            for (List<ClassInfo> sections : bySignature.values()) {
+                String className = "Section$" + dispatcher++;
+                ClassInfo first = sections.get(0);
+                String params = "";
+                String args = "";
+                if (first.paramsList != null) {
+                    for (String[] param : first.paramsList) {
+                        params += ", " + param[0] + " " + param[1];
+                        args += ", " + param[1];
+                    }
+                }
+                sb.append("    public static final class ").reAppend(className).reAppend(" {\n")
+                        .append("        private final int _id;\n")
+                        .append("        private int _sizeEstimate;\n\n")
+                        .append("        private ").reAppend(className).reAppend("(int id, int sizeEstimate) {\n")
+                        .append("            _id = id;\n")
+                        .append("            _sizeEstimate = sizeEstimate;\n")
+                        .append("        }\n\n");
+                sb.append("        public String render(").reAppend(params.isEmpty() ? "" : params.substring(2)).reAppend(") {\n")
+                        .append("            return render(null").reAppend(args).reAppend(");\n")
+                        .append("        }\n\n")
+                        .append("        public String render(ILayout overrideLayout").reAppend(params).reAppend(") {\n")
+                        .append("            StringBuilder sb = newBuffer(_sizeEstimate);\n")
+                        .append("            renderInto(sb, overrideLayout").reAppend(args).reAppend(");\n")
+                        .append("            _sizeEstimate = nextSizeEstimate(_sizeEstimate, sb.length());\n")
+                        .append("            return releaseBuffer(sb);\n")
+                        .append("        }\n\n");
+                sb.append("        public void renderInto(Appendable buffer").reAppend(params).reAppend(") {\n")
+                        .append("            renderInto(buffer, null").reAppend(args).reAppend(");\n")
+                        .append("        }\n\n")
+                        .append("        public void renderInto(Appendable buffer, ILayout overrideLayout").reAppend(params).reAppend(") {\n")
+                        .append("            try {\n")
+                        .append("                switch (_id) {\n");
+                for (int i = 0; i < sections.size(); i++) {
+                    sb.append("                    case ").reAppend(String.valueOf(i)).reAppend(":\n")
+                            .append("                        INSTANCE.renderImpl$").reAppend(sections.get(i).name).reAppend("(buffer, overrideLayout").reAppend(args).reAppend(");\n")
+                            .append("                        break;\n");
+                }
+                sb.append("                }\n")
+                        .append("            } catch (IOException e) {\n")
+                        .append("                throw new RuntimeException(e);\n")
+                        .append("            }\n")
+                        .append("        }\n\n");
+                String itemType = eachItemType(first);
+                if (itemType != null) {
+                    sb.append("        public void renderEachInto(Appendable buffer, Iterable<? extends ").reAppend(itemType).reAppend("> items) {\n")
+                            .append("            try {\n")
+                            .append("                switch (_id) {\n");
+                    for (int i = 0; i < sections.size(); i++) {
+                        sb.append("                    case ").reAppend(String.valueOf(i)).reAppend(":\n")
+                                .append("                        INSTANCE.renderImpl$").reAppend(sections.get(i).name).reAppend("$$each(buffer, null, items);\n")
+                                .append("                        break;\n");
+                    }
+                    sb.append("                }\n")
+                            .append("            } catch (IOException e) {\n")
+                            .append("                throw new RuntimeException(e);\n")
+                            .append("            }\n")
+                            .append("        }\n\n");
+                }
+                sb.append("    }\n\n");
+                for (int i = 0; i < sections.size(); i++) {
+                    sb.append("    public static final ").reAppend(className).reAppend(" ").reAppend(sections.get(i).name)
+                            .reAppend(" = new ").reAppend(className).reAppend("(").reAppend(String.valueOf(i)).reAppend(", ")
+                            .reAppend(String.valueOf(getStaticLength(sections.get(i)))).reAppend(");\n");
+                }
+                sb.append("\n");
+            }
+        }
+
+        private void addConstants() {
+            if (!currClass.slices.isEmpty()) {
+                sb.append("\n");
+                sb.append("    private static final StaticText TEMPLATE_TEXT = StaticText.load(").reAppend(rootClass.name)
+                        .reAppend(".class, \"").reAppend(escapeJavaString(rootClass.fileName)).reAppend("\", ")
+                        .reAppend(String.valueOf(utf8Length(source, 0, source.length()))).reAppend(");\n");
+                for (int i = 0; i < currClass.slices.size(); i++) {
+                    int[] slice = currClass.slices.get(i);
+                    sb.append("    private static final StaticText.Slice STATIC_TEXT_").reAppend(String.valueOf(i))
+                            .reAppend(" = TEMPLATE_TEXT.slice(").reAppend(String.valueOf(slice[0])).reAppend(", ")
+                            .reAppend(String.valueOf(slice[1])).reAppend(");\n");
+                }
+            }
+            if (currClass.constants.isEmpty()) {
+                return;
+            }
+            sb.append("\n");
+            for (int i = 0; i < currClass.constants.size(); i++) {
+                sb.append("    private static final String STATIC_").reAppend(String.valueOf(i)).reAppend(" = \"")
+                        .reAppend(currClass.constants.get(i)).reAppend("\";\n");
+                sb.append("    private static final byte[] STATIC_").reAppend(String.valueOf(i)).reAppend("_BYTES = utf8(STATIC_")
+                        .reAppend(String.valueOf(i)).reAppend(");\n");
+            }
+        }
+
+        /**
+         * Registers an escaped string literal as a constant of the current class, reusing an identical constant
+         * if there is one, and returns the constant's name
+         */
+        private String makeConstant(String escapedText) {
+            int index = currClass.constants.indexOf(escapedText);
+            if (index < 0) {
+                index = currClass.constants.size();
+                currClass.constants.add(escapedText);
+            }
+            return "STATIC_" + index;
+        }
+
         private void addHeaderAndFooter() {
             sb.append("    public static ").reAppend(LAYOUT_INTERFACE).reAppend(" asLayout() {\n")
                     .append("        return INSTANCE;\n")
@@ -614,14 +1375,18 @@ public class BBTemplateGen {
                     .append("            getExplicitLayout().header(buffer);\n")
                     .append("        }\n");
             assert(currClass.depth == 0);
-            makeFuncContent(currClass.startTokenPos, currClass.contentPos);
-            sb.append("    }\n")
-                    .append("    @Override\n")
+            makeFuncContent(currClass.startTokenPos, currClass.contentPos, new BodyMethod("header", "Appendable buffer", "buffer"),
+                    planSplits(currClass.startTokenPos, currClass.contentPos));
+            sb.append("    }\n");
+            addContinuations();
+            sb.append("    @Override\n")
                     .append("    public void footer(Appendable buffer) throws IOException {\n");
-            makeFuncContent(currClass.contentPos, currClass.endTokenPos);
+            makeFuncContent(currClass.contentPos, currClass.endTokenPos, new BodyMethod("footer", "Appendable buffer", "buffer"),
+                    planSplits(currClass.contentPos, currClass.endTokenPos));
             sb.append("        if (getExplicitLayout() != null) {\n")
                     .append("            getExplicitLayout().footer(buffer);\n")
                     .append("    }\n}\n");
+            addContinuations();
         }
 
         private List<Directive> getDirectivesList(List<Token> tokens) {
@@ -636,6 +1401,32 @@ public class BBTemplateGen {
             return dirList;
         }
 
+        //every for directive has to be closed by an end for within the same section
+        private void checkLoops(List<Directive> dirList) {
+            Deque<Integer> openLoops = new ArrayDeque<>();
+            openLoops.push(0);
+            for (Directive dir : dirList) {
+                if (dir.dirType == FOR) {
+                    openLoops.push(openLoops.pop() + 1);
+                } else if (dir.dirType == END_FOR) {
+                    if (openLoops.peek() == 0) {
+                        addError("end for without a for directive", dir.token.getLine());
+                    } else {
+                        openLoops.push(openLoops.pop() - 1);
+                    }
+                } else if (dir.dirType == SECTION) {
+                    openLoops.push(0);
+                } else if (dir.dirType == END_SECTION && openLoops.size() > 1) {
+                    if (openLoops.pop() > 0) {
+                        addError("for directive without an end for in the section", dir.token.getLine());
+                    }
+                }
+            }
+            if (openLoops.pop() > 0) {
+                addError("for directive without an end for", tokens.get(tokens.size() - 1).getLine());
+            }
+        }
+
         private Map<Integer, Directive> getDirectivesMap(List<Directive> dirList) {
             Map<Integer, Directive> dirMap = new HashMap<>();
             for (Directive dir : dirList) {
@@ -652,39 +1443,119 @@ public class BBTemplateGen {
             }
         }
 
-        private void makeFuncContent(Integer startPos, Integer endPos) {
-            ArrayList<Integer> bbLineNumbers = new ArrayList<>();
+        private void makeForkingFuncContent(int startPos, Integer endPos, BodyMethod method, List<Split> splits) {
+            openForkedIncludes(startPos, endPos, "            ");
+            makeFuncContent(startPos, endPos, method, splits);
+            joinForkedIncludes(startPos, endPos, "            ");
+        }
+
+        /**
+         * A body with parallel or deferred includes renders into buffers that keep track of them, and joins them
+         * at its end. The deferred buffer comes first, so the body's output, parallel includes and all, is written
+         * out before the deferred includes.
+         */
+        private void openForkedIncludes(int startPos, Integer endPos, String indent) {
+            if (hasForkedIncludes(startPos, endPos, true)) {
+                sb.append(indent).reAppend("buffer = DeferredIncludes.open(buffer);\n");
+            }
+            if (hasForkedIncludes(startPos, endPos, false)) {
+                sb.append(indent).reAppend("buffer = ParallelIncludes.open(buffer);\n");
+            }
+        }
+
+        private void joinForkedIncludes(int startPos, Integer endPos, String indent) {
+            if (hasForkedIncludes(startPos, endPos, false)) {
+                sb.append(indent).reAppend("buffer = ParallelIncludes.join(buffer);\n");
+            }
+            if (hasForkedIncludes(startPos, endPos, true)) {
+                sb.append(indent).reAppend("buffer = DeferredIncludes.join(buffer);\n");
+            }
+        }
+
+        private void makeFuncContent(Integer startPos, Integer endPos, BodyMethod method, List<Split> splits) {
             if (endPos == null) {
                 endPos = tokens.size() - 1;
             }
-            sb.append("            int lineStart = Thread.currentThread().getStackTrace()[1].getLineNumber() + 1;\n");
+            int stopPos = splits.isEmpty() ? endPos : splits.get(0).tokenPos - 1;
+            //production templates leave runtime exceptions alone rather than remapping them to .bb lines
+            boolean remapExceptions = _mode != Mode.PRODUCTION;
 
-            sb.append("            try {\n");
+            if (remapExceptions) {
+                sb.append("            try {\n");
+            }
+            //the java -> bb line mapping is computed here, so nothing has to be looked up when rendering
+            int lineStart = sb.nextLine();
+            sb.startLineMap();
+            //adjacent static text and literal expressions are coalesced into a single constant
+            StringBuilder staticText = new StringBuilder();
+            //the same text as it appears in the template, or null once it contains folded literals
+            StringBuilder rawText = new StringBuilder();
+            int staticTextLine = 0;
+            //sections spliced into this body, and the token positions to continue at once they end
+            Deque<ClassInfo> inlining = new ArrayDeque<>();
+            Deque<Integer> returnPositions = new ArrayDeque<>();
             outerLoop:
-            for (int i = startPos; i <= endPos; i++) {
+            for (int i = startPos; i <= stopPos || !returnPositions.isEmpty(); i++) {
                 Token token = tokens.get(i);
+                String literal = null;
+                if (token.getType() == STRING_CONTENT) {
+                    literal = escapeJavaString(token.getContent());
+                } else if (token.getType() == EXPRESSION) {
+                    literal = foldLiteral(token.getContent());
+                }
+                if (literal != null) {
+                    if (staticText.length() == 0) {
+                        staticTextLine = token.getLine();
+                        rawText = new StringBuilder();
+                    }
+                    staticText.append(literal);
+                    if (rawText != null && token.getType() == STRING_CONTENT) {
+                        rawText.append(token.getContent());
+                    } else {
+                        rawText = null;
+                    }
+                    continue;
+                } else if (token.getType() != COMMENT && staticText.length() > 0 && emitsCode(i)) {
+                    addStaticText(staticText.toString(), rawText, staticTextLine);
+                    staticText.setLength(0);
+                }
+                sb.setBBLine(token.getLine());
                 switch (token.getType()) {
-                    case STRING_CONTENT:
-                        sb.append("                buffer.append(\"").reAppend(token.getContent().replaceAll("\"", "\\\\\"").replaceAll("\r", "").replaceAll("\n", "\\\\n") + "\");\n");
-                        bbLineNumbers.add(token.getLine());
-                        break;
                     case STATEMENT:
                         String[] statementList = token.getContent().split("\n");
                         for (int j = 0; j < statementList.length; j++) {
                             String statement = statementList[j].trim().replaceAll("\r", "");
+                            sb.setBBLine(token.getLine() + j);
                             sb.append("                ").reAppend(statement).reAppend("\n");
-                            bbLineNumbers.add(token.getLine() + j);
                         }
                         break;
                     case EXPRESSION:
-                        sb.append("                buffer.append(toS(").reAppend(token.getContent()).reAppend("));\n");
-                        bbLineNumbers.add(token.getLine());
+                        String[] renderCall = parseRenderCall(token.getContent());
+                        if (renderCall != null && currClass.superClass.equals(BASE_CLASS_NAME) && isTemplate(renderCall[0])) {
+                            //a nested template renders straight into this buffer instead of through a String, unless
+                            //the superclass may render that String differently, e.g. escape it
+                            sb.append("                ").reAppend(renderCall[0]).reAppend(".renderInto(buffer")
+                                    .reAppend(renderCall[1].isEmpty() ? "" : ", " + renderCall[1]).reAppend(");\n");
+                        } else if (hasTypedToS(currClass.superClass)) {
+                            sb.append("                toS(buffer, ").reAppend(token.getContent()).reAppend(");\n");
+                        } else {
+                            //javac picks among the superclass's own toS methods by the expression's static type
+                            sb.append("                buffer.append(toS(").reAppend(token.getContent()).reAppend("));\n");
+                        }
                         break;
                     case COMMENT:
                         break;
                     case DIRECTIVE:
                         Directive dir = dirMap.get(i);
-                        if (dir.dirType == SECTION) {
+                        ClassInfo inlined = inlinedSection(i, inlining);
+                        if (inlined != null) {
+                            if (!currClass.superClass.equals(BASE_CLASS_NAME)) {
+                                sb.append("            beforeRender(buffer, null, false);\n");
+                            }
+                            inlining.push(inlined);
+                            returnPositions.push(dir.dirType == SECTION ? inlined.endTokenPos : i);
+                            i = inlined.startTokenPos - 1;
+                        } else if (dir.dirType == SECTION) {
                             ClassInfo classToSkipOver = currClass.nestedClasses.get(i + 1);
                             if (classToSkipOver.endTokenPos == null) {
                                 i = endPos;
@@ -693,26 +1564,610 @@ public class BBTemplateGen {
                             }
                             addSection(dir);
                         } else if (dir.dirType == END_SECTION) {
-                            break outerLoop;
+                            if (returnPositions.isEmpty()) {
+                                break outerLoop;
+                            }
+                            if (!currClass.superClass.equals(BASE_CLASS_NAME)) {
+                                sb.append("            afterRender(buffer, null, false);\n");
+                            }
+                            inlining.pop();
+                            i = returnPositions.pop();
                         } else if (dir.dirType == INCLUDE) {
                             addInclude(dir);
+                        } else if (dir.dirType == FOR) {
+                            addLoop(dir);
+                        } else if (dir.dirType == END_FOR) {
+                            sb.append("                }\n")
+                                    .append("                }\n");
                         } else if (dir.dirType == CONTENT) {
                             break;
                         }
                         break;
                 }
             }
+            if (staticText.length() > 0) {
+                addStaticText(staticText.toString(), rawText, staticTextLine);
+            }
+            if (!splits.isEmpty()) {
+                Split split = splits.get(0);
+                BodyMethod next = method.next(split.locals);
+                sb.setBBLine(tokens.get(split.tokenPos).getLine());
+                sb.append("                ").reAppend(next.name()).reAppend("(").reAppend(next.args).reAppend(");\n");
+                continuations.add(new Continuation(next, split.tokenPos, endPos, splits.subList(1, splits.size())));
+            }
+            List<Integer> bbLineNumbers = sb.endLineMap();
+            if (!remapExceptions) {
+                return;
+            }
             String nums = bbLineNumbers.toString().substring(1, bbLineNumbers.toString().length() - 1);
 
             sb.append("            } catch (RuntimeException e) {\n");
-            sb.append("                int[] bbLineNumbers = new int[]{").reAppend(nums).reAppend("};\n");
-            sb.append("                handleException(e, \"").reAppend(this.currClass.fileName).reAppend("\", lineStart, bbLineNumbers);\n            }\n");
+            sb.append("                handleException(e, \"").reAppend(this.currClass.fileName).reAppend("\", ").reAppend(String.valueOf(lineStart))
+                    .reAppend(", new int[]{").reAppend(nums).reAppend("});\n            }\n");
+        }
+
+
+        /**
+         * Walks a template body the way makeFuncContent does, estimating the bytecode every token generates, and
+         * returns the positions at which the body has to continue in another method. Bodies are only split
+         * between top level statements, and never once a local has been declared that the next method could not
+         * take as a parameter.
+         */
+        private List<Split> planSplits(int startPos, Integer endPos) {
+            if (endPos == null) {
+                endPos = tokens.size() - 1;
+            }
+            List<Split> splits = new ArrayList<>();
+            StatementScanner scanner = new StatementScanner();
+            List<String[]> visibleLocals = new ArrayList<>();
+            Deque<ClassInfo> inlining = new ArrayDeque<>();
+            Deque<Integer> returnPositions = new ArrayDeque<>();
+            int size = 0;
+            boolean inStaticRun = false;
+            for (int i = startPos; i <= endPos || !returnPositions.isEmpty(); i++) {
+                Token token = tokens.get(i);
+                if (size > MAX_METHOD_SIZE && inlining.isEmpty() && scanner.atBoundary() && !continuesStatement(token)) {
+                    visibleLocals.addAll(scanner.takeLocals());
+                    List<String[]> usedLocals = usedLocals(visibleLocals, i, endPos);
+                    if (usedLocals.size() <= MAX_PASSED_LOCALS) {
+                        splits.add(new Split(i, usedLocals));
+                        size = 0;
+                        inStaticRun = false;
+                    }
+                }
+                switch (token.getType()) {
+                    case STRING_CONTENT:
+                        size += inStaticRun ? 0 : 10;
+                        inStaticRun = true;
+                        break;
+                    case EXPRESSION:
+                        if (foldLiteral(token.getContent()) != null) {
+                            size += inStaticRun ? 0 : 10;
+                            inStaticRun = true;
+                        } else {
+                            size += 10 + token.getContent().length();
+                            inStaticRun = false;
+                        }
+                        break;
+                    case STATEMENT:
+                        scanner.scan(token.getContent());
+                        if (scanner.unsplittable) {
+                            return splits;
+                        }
+                        size += token.getContent().replaceAll("\\s", "").length();
+                        inStaticRun = false;
+                        break;
+                    case DIRECTIVE:
+                        Directive dir = dirMap.get(i);
+                        ClassInfo inlined = inlinedSection(i, inlining);
+                        if (inlined != null) {
+                            inlining.push(inlined);
+                            returnPositions.push(dir.dirType == SECTION ? inlined.endTokenPos : i);
+                            i = inlined.startTokenPos - 1;
+                            continue;
+                        } else if (dir.dirType == SECTION) {
+                            ClassInfo section = currClass.nestedClasses.get(i + 1);
+                            i = section.endTokenPos == null ? endPos : section.endTokenPos;
+                        } else if (dir.dirType == END_SECTION) {
+                            if (returnPositions.isEmpty()) {
+                                return splits;
+                            }
+                            inlining.pop();
+                            i = returnPositions.pop();
+                            continue;
+                        } else if (dir.dirType == FOR) {
+                            //a loop opens a block and its body, neither of which can be split
+                            scanner.scan("{ for (;;) {");
+                        } else if (dir.dirType == END_FOR) {
+                            scanner.scan("} }");
+                        }
+                        if (emitsCode(i)) {
+                            size += 10 + token.getContent().length();
+                            inStaticRun = false;
+                        }
+                        break;
+                }
+            }
+            return splits;
+        }
+
+        //the locals referenced by any code from startPos to endPos
+        private List<String[]> usedLocals(List<String[]> locals, int startPos, int endPos) {
+            Set<String> identifiers = new HashSet<>();
+            for (int i = startPos; i <= endPos; i++) {
+                Token token = tokens.get(i);
+                if (token.getType() == STATEMENT || token.getType() == EXPRESSION || token.getType() == DIRECTIVE) {
+                    Matcher matcher = IDENTIFIER.matcher(token.getContent());
+                    while (matcher.find()) {
+                        identifiers.add(matcher.group());
+                    }
+                }
+            }
+            List<String[]> used = new ArrayList<>();
+            for (String[] local : locals) {
+                if (identifiers.contains(local[1])) {
+                    used.add(local);
+                }
+            }
+            return used;
+        }
+
+        //true if a statement token continues the statement before it, and so can't start a new method
+        private boolean continuesStatement(Token token) {
+            return token.getType() == STATEMENT && token.getContent().trim().matches("(?s)(;|(else|catch|finally|while)\\b).*");
+        }
+
+        /**
+         * Returns the section of this file whose body is spliced in place of the section or include directive at
+         * tokenPos, or null if the directive is generated as a call. Only production templates splice sections, as
+         * spliced ones have no tracer events or lines of their own. Only sections made of nothing but static text,
+         * expressions and includes are spliced, and only where variables of their parameters' names and types are
+         * passed to them in order, so the spliced expressions see the same values the section would.
+         */
+        private ClassInfo inlinedSection(int tokenPos, Deque<ClassInfo> inlining) {
+            if (_mode != Mode.PRODUCTION) {
+                return null;
+            }
+            Directive dir = dirMap.get(tokenPos);
+            ClassInfo section = null;
+            if (dir.dirType == SECTION) {
+                section = currClass.nestedClasses.get(tokenPos + 1);
+                if (section != null && section.paramsList != null && !passesOwnParameters(section.params, section, tokenPos, inlining)) {
+                    section = null;
+                }
+            } else if (dir.dirType == INCLUDE && dir.conditional == null && !dir.parallel && !dir.deferred) {
+                for (ClassInfo candidate : rootClass.nestedClasses.values()) {
+                    String name = candidate.name;
+                    if (dir.className.equals(name) || dir.className.equals(rootClass.name + "." + name)
+                            || dir.className.equals(packageName + "." + rootClass.name + "." + name)) {
+                        section = candidate;
+                    }
+                }
+                if (section != null && !passesOwnParameters(dir.params, section, tokenPos, inlining)) {
+                    section = null;
+                }
+            }
+            if (section == null || inlining.contains(section) || !isInlinable(section)) {
+                return null;
+            }
+            return section;
+        }
+
+        //true if args names, in order, variables of the same names and types as the section's parameters
+        private boolean passesOwnParameters(String args, ClassInfo section, int tokenPos, Deque<ClassInfo> inlining) {
+            args = args == null ? "" : args.trim();
+            if (section.paramsList == null) {
+                return args.isEmpty();
+            }
+            String[] argList = args.isEmpty() ? new String[0] : args.split(",");
+            if (argList.length != section.paramsList.length) {
+                return false;
+            }
+            Map<String, String> types = visibleTypes(tokenPos, inlining);
+            for (int i = 0; i < argList.length; i++) {
+                String[] param = section.paramsList[i];
+                String arg = argList[i].trim();
+                //a parameter declared "String name" in a section directive is stored as its type and its name
+                String argName = arg.substring(arg.lastIndexOf(' ') + 1);
+                if (!argName.equals(param[1]) || !sameType(types.get(argName), param[0])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the declared types by name of the variables a directive at tokenPos can refer to: the parameters
+         * of the section spliced around it, or else those of the class body it is in and the locals the statements
+         * of that body declare before it. Locals declared in blocks are left out, which only keeps a section from
+         * being spliced.
+         */
+        private Map<String, String> visibleTypes(int tokenPos, Deque<ClassInfo> inlining) {
+            Map<String, String> types = new HashMap<>();
+            ClassInfo body = inlining.isEmpty() ? enclosingClass(rootClass, tokenPos) : inlining.peek();
+            if (body.paramsList != null) {
+                for (String[] param : body.paramsList) {
+                    types.put(param[1], param[0]);
+                }
+            }
+            if (!inlining.isEmpty()) {
+                return types;
+            }
+            StatementScanner scanner = new StatementScanner();
+            for (int i = body.startTokenPos; i < tokenPos; i++) {
+                ClassInfo nested = body.nestedClasses.get(i + 1);
+                if (nested != null) {
+                    i = nested.endTokenPos;
+                } else if (tokens.get(i).getType() == STATEMENT) {
+                    scanner.scan(tokens.get(i).getContent());
+                } else if (tokens.get(i).getType() == DIRECTIVE && dirMap.get(i).dirType == FOR) {
+                    types.put(dirMap.get(i).loopVariable, dirMap.get(i).loopType);
+                }
+            }
+            for (String[] local : scanner.takeLocals()) {
+                types.put(local[1], local[0]);
+            }
+            return types;
+        }
+
+        private ClassInfo enclosingClass(ClassInfo classInfo, int tokenPos) {
+            for (ClassInfo nested : classInfo.nestedClasses.values()) {
+                if (nested.startTokenPos <= tokenPos && (nested.endTokenPos == null || tokenPos <= nested.endTokenPos)) {
+                    return enclosingClass(nested, tokenPos);
+                }
+            }
+            return classInfo;
+        }
+
+        private boolean sameType(String type, String paramType) {
+            return type != null && type.replaceAll("\\s", "").equals(paramType.replaceAll("\\s", ""));
+        }
+
+        private boolean isInlinable(ClassInfo section) {
+            if (!section.nestedClasses.isEmpty() || section.endTokenPos == null) {
+                return false;
+            }
+            boolean hasContent = false;
+            for (int i = section.startTokenPos; i < section.endTokenPos; i++) {
+                Token token = tokens.get(i);
+                if (token.getType() == STATEMENT || (token.getType() == DIRECTIVE && dirMap.get(i).dirType != INCLUDE && dirMap.get(i).dirType != IMPORT)
+                        || (token.getType() == DIRECTIVE && (dirMap.get(i).parallel || dirMap.get(i).deferred))) {
+                    return false;
+                }
+                hasContent |= token.getType() == STRING_CONTENT || token.getType() == EXPRESSION;
+            }
+            return hasContent;
+        }
+
+        //true if the body splices in included code, which may write to the buffer like any static text
+        private boolean inlinesIncludes(int startPos, Integer endPos) {
+            if (endPos == null) {
+                endPos = tokens.size() - 1;
+            }
+            for (int i = startPos; i <= endPos; i++) {
+                Directive dir = dirMap.get(i);
+                if (dir != null && dir.dirType == INCLUDE && (inlinedSection(i, new ArrayDeque<ClassInfo>()) != null || getStaticTemplate(dir) != null)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the escaped text of the template an include refers to if that template is nothing but static
+         * text, or null otherwise. Only production templates inline other files, since development templates
+         * are regenerated one file at a time.
+         */
+        private String getStaticTemplate(Directive include) {
+            if (_mode != Mode.PRODUCTION || include.conditional != null || (include.params != null && !include.params.trim().isEmpty())) {
+                return null;
+            }
+            String name = getIncludedName(include);
+            if (!staticTemplates.containsKey(name)) {
+                staticTemplates.put(name, findStaticTemplate(_templateSources.apply(name)));
+            }
+            return staticTemplates.get(name);
+        }
+
+        private String findStaticTemplate(String source) {
+            if (source == null) {
+                return null;
+            }
+            BBTokenizer tokenizer = new BBTokenizer();
+            List<Token> includedTokens = tokenizer.tokenize(source);
+            if (!tokenizer.getIssues().isEmpty()) {
+                return null;
+            }
+            StringBuilder content = new StringBuilder();
+            for (Token token : includedTokens) {
+                if (token.getType() == STRING_CONTENT) {
+                    content.append(escapeJavaString(token.getContent()));
+                } else if (token.getType() == EXPRESSION && literalText(token.getContent()) != null) {
+                    content.append(literalText(token.getContent()));
+                } else if (token.getType() == DIRECTIVE && token.getContent().matches("import.*")) {
+                    continue;
+                } else if (token.getType() != COMMENT) {
+                    return null;
+                }
+            }
+            return content.length() <= MAX_CONSTANT_LENGTH ? content.toString() : null;
+        }
+
+        /**
+         * True if a name refers to a section of this file, or to a template (or one of its sections) that the
+         * template sources know of
+         */
+        private boolean isTemplate(String name) {
+            if (isSectionOf(rootClass, name) || isSectionOf(rootClass, stripPrefix(name, rootClass.name + "."))
+                    || isSectionOf(rootClass, stripPrefix(name, packageName + "." + rootClass.name + "."))) {
+                return true;
+            }
+            List<String> candidates = new ArrayList<>();
+            candidates.add(name);
+            candidates.add(packageName + "." + name);
+            for (String candidate : candidates) {
+                if (_templateSources.apply(candidate) != null) {
+                    return true;
+                }
+                int lastDot = candidate.lastIndexOf('.');
+                if (lastDot > 0) {
+                    String source = _templateSources.apply(candidate.substring(0, lastDot));
+                    if (source != null && Pattern.compile("<%@\\s*section\\s+" + Pattern.quote(candidate.substring(lastDot + 1)) + "\\b").matcher(source).find()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        //true if a dotted name, relative to the given class, names one of its (nested) sections
+        private boolean isSectionOf(ClassInfo classInfo, String name) {
+            if (name == null) {
+                return false;
+            }
+            String first = name.contains(".") ? name.substring(0, name.indexOf('.')) : name;
+            for (ClassInfo nested : classInfo.nestedClasses.values()) {
+                if (nested.name.equals(first)) {
+                    return first.equals(name) || isSectionOf(nested, name.substring(first.length() + 1));
+                }
+            }
+            return false;
+        }
+
+        private String stripPrefix(String name, String prefix) {
+            return name.startsWith(prefix) ? name.substring(prefix.length()) : null;
+        }
+
+        private String getIncludedName(Directive include) {
+            return include.className.contains(".") ? include.className : packageName + "." + include.className;
+        }
+
+        private void addContinuations() {
+            while (!continuations.isEmpty()) {
+                Continuation continuation = continuations.remove(0);
+                sb.append("    private void ").reAppend(continuation.method.name()).reAppend("(").reAppend(continuation.method.params).reAppend(") throws IOException {\n");
+                makeFuncContent(continuation.startPos, continuation.endPos, continuation.method, continuation.splits);
+                sb.append("    }\n\n");
+            }
+        }
+
+        /**
+         * Returns the escaped text of the current class if its body is nothing but static text and literals,
+         * or null if it generates any code
+         */
+        private String getStaticContent() {
+            return getStaticContent(currClass.startTokenPos, currClass.endTokenPos);
+        }
+
+        private String getStaticContent(int startPos, Integer endPos) {
+            if (endPos == null) {
+                endPos = tokens.size() - 1;
+            }
+            StringBuilder content = new StringBuilder();
+            for (int i = startPos; i <= endPos; i++) {
+                Token token = tokens.get(i);
+                if (token.getType() == STRING_CONTENT) {
+                    content.append(escapeJavaString(token.getContent()));
+                } else if (token.getType() == EXPRESSION) {
+                    String literal = foldLiteral(token.getContent());
+                    if (literal == null) {
+                        return null;
+                    }
+                    content.append(literal);
+                } else if (token.getType() == DIRECTIVE && dirMap.get(i).dirType == END_SECTION) {
+                    break;
+                } else if (token.getType() != COMMENT && emitsCode(i)) {
+                    return null;
+                }
+            }
+            return content.length() <= MAX_CONSTANT_LENGTH ? content.toString() : null;
+        }
+
+        //the number of characters of static text a class renders at least, which seeds its size estimate
+        private int getStaticLength(ClassInfo classInfo) {
+            int endPos = classInfo.endTokenPos == null ? tokens.size() - 1 : classInfo.endTokenPos;
+            int length = 0;
+            for (int i = classInfo.startTokenPos; i <= endPos; i++) {
+                if (tokens.get(i).getType() == STRING_CONTENT) {
+                    length += tokens.get(i).getContent().length();
+                }
+            }
+            return length;
+        }
+
+        private void addStaticText(String escapedText, CharSequence rawText, int bbLine) {
+            int[] slice = rawText == null ? null : findSlice(rawText.toString());
+            if (slice == null) {
+                addStaticText(escapedText, bbLine);
+                return;
+            }
+            sb.setBBLine(bbLine);
+            int index = currClass.slices.size();
+            currClass.slices.add(slice);
+            sb.append("                appendStatic(buffer, STATIC_TEXT_").reAppend(String.valueOf(index)).reAppend(");\n");
+        }
+
+        //the UTF-8 byte offset and length of a long static text within the template, if it's to be rendered from there
+        private int[] findSlice(String text) {
+            if (!_staticTextResources || text.length() < MIN_RESOURCE_TEXT_LENGTH || text.indexOf('\r') >= 0) {
+                return null;
+            }
+            int index = source.indexOf(text);
+            if (index < 0) {
+                return null;
+            }
+            return new int[]{utf8Length(source, 0, index), utf8Length(text, 0, text.length())};
+        }
+
+        private void addStaticText(String escapedText, int bbLine) {
+            sb.setBBLine(bbLine);
+            for (String chunk : splitConstant(escapedText)) {
+                String constant = makeConstant(chunk);
+                sb.append("                appendStatic(buffer, ").reAppend(constant).reAppend(", ").reAppend(constant).reAppend("_BYTES);\n");
+            }
+        }
+
+        //true if the token at the given position generates code, and thus ends a run of static text
+        private boolean emitsCode(int tokenPos) {
+            Token token = tokens.get(tokenPos);
+            if (token.getType() != DIRECTIVE) {
+                return true;
+            }
+            DirType type = dirMap.get(tokenPos).dirType;
+            return type == SECTION || type == INCLUDE || type == END_SECTION || type == CONTENT || type == FOR || type == END_FOR;
+        }
+
+        /**
+         * Returns the escaped string form of an expression that is a single literal, or null if the expression
+         * has to be evaluated at render time. Literals are only folded for templates using the default
+         * {@code toS}, since a custom base class may render them differently.
+         */
+        private String foldLiteral(String expression) {
+            if (!currClass.superClass.equals(BASE_CLASS_NAME)) {
+                return null;
+            }
+            return literalText(expression);
+        }
+
+        //the escaped text of a string, number, boolean or char literal, or null for any other expression
+        private String literalText(String expression) {
+            String expr = expression.trim();
+            if (expr.matches("\"([^\"\\\\\\n]|\\\\.)*\"")) {
+                return expr.substring(1, expr.length() - 1);
+            } else if (expr.matches("0|-?[1-9][0-9]{0,8}|true|false")) {
+                return expr;
+            } else if (expr.matches("'[^'\\\\\"]'")) {
+                return escapeJavaString(expr.substring(1, 2));
+            }
+            return null;
+        }
+
+        //splits an escaped string into chunks that each fit into a single class file constant
+        private List<String> splitConstant(String escapedText) {
+            List<String> chunks = new ArrayList<>();
+            int start = 0;
+            int i = 0;
+            while (i < escapedText.length()) {
+                if (i - start >= MAX_CONSTANT_LENGTH) {
+                    chunks.add(escapedText.substring(start, i));
+                    start = i;
+                }
+                i = endOfCharacter(escapedText, i);
+            }
+            chunks.add(escapedText.substring(start));
+            return chunks;
         }
 
+        //the position after the (possibly escaped) character starting at pos, so escapes are never split
+        private int endOfCharacter(String escapedText, int pos) {
+            if (escapedText.charAt(pos) != '\\' || pos + 1 == escapedText.length()) {
+                return pos + 1;
+            }
+            char next = escapedText.charAt(pos + 1);
+            if (next == 'u') {
+                int end = pos + 1;
+                while (escapedText.charAt(end) == 'u') {
+                    end++;
+                }
+                return Math.min(end + 4, escapedText.length());
+            } else if (next >= '0' && next <= '7') {
+                int end = pos + 1;
+                while (end < escapedText.length() && end < pos + 4 && escapedText.charAt(end) >= '0' && escapedText.charAt(end) <= '7') {
+                    end++;
+                }
+                return end;
+            }
+            return pos + 2;
+        }
+
+        /**
+         * Opens the loop of a for directive, which is closed by its end for. Sources declared as arrays, and any
+         * source of a primitive loop type, are walked as arrays by index, random access lists by index too and
+         * anything else with its iterator. The body sees the loop's state as primitive locals named after the loop
+         * variable: nameIndex, nameFirst, nameLast, nameOdd and nameEven, where the first element is odd.
+         */
+        private void addLoop(Directive dir) {
+            String type = dir.loopType;
+            String name = dir.loopVariable;
+            String arrayType = loopArrayType(dir);
+            sb.append("                {\n");
+            if (arrayType != null) {
+                sb.append("                ").reAppend(arrayType).reAppend(" ").reAppend(name).reAppend("$array = ").reAppend(dir.loopSource).reAppend(";\n")
+                        .append("                int ").reAppend(name).reAppend("$size = ").reAppend(name).reAppend("$array == null ? 0 : ").reAppend(name).reAppend("$array.length;\n")
+                        .append("                for (int ").reAppend(name).reAppend("Index = 0; ").reAppend(name).reAppend("Index < ").reAppend(name).reAppend("$size; ").reAppend(name).reAppend("Index++) {\n")
+                        .append("                ").reAppend(type).reAppend(" ").reAppend(name).reAppend(" = ").reAppend(name).reAppend("$array[").reAppend(name).reAppend("Index];\n")
+                        .append("                boolean ").reAppend(name).reAppend("Last = ").reAppend(name).reAppend("Index == ").reAppend(name).reAppend("$size - 1;\n");
+            } else {
+                sb.append("                Iterable<? extends ").reAppend(type).reAppend("> ").reAppend(name).reAppend("$items = bb.runtime.Loops.iterable(").reAppend(dir.loopSource).reAppend(");\n")
+                        .append("                java.util.List<? extends ").reAppend(type).reAppend("> ").reAppend(name).reAppend("$list = bb.runtime.Loops.randomAccess(").reAppend(name).reAppend("$items);\n")
+                        .append("                java.util.Iterator<? extends ").reAppend(type).reAppend("> ").reAppend(name).reAppend("$iterator = ")
+                        .reAppend(name).reAppend("$list == null ? ").reAppend(name).reAppend("$items.iterator() : null;\n")
+                        .append("                int ").reAppend(name).reAppend("$size = ").reAppend(name).reAppend("$list == null ? -1 : ").reAppend(name).reAppend("$list.size();\n")
+                        .append("                for (int ").reAppend(name).reAppend("Index = 0; ").reAppend(name).reAppend("$list == null ? ").reAppend(name).reAppend("$iterator.hasNext() : ")
+                        .reAppend(name).reAppend("Index < ").reAppend(name).reAppend("$size; ").reAppend(name).reAppend("Index++) {\n")
+                        .append("                ").reAppend(type).reAppend(" ").reAppend(name).reAppend(" = ").reAppend(name).reAppend("$list == null ? ")
+                        .reAppend(name).reAppend("$iterator.next() : ").reAppend(name).reAppend("$list.get(").reAppend(name).reAppend("Index);\n")
+                        .append("                boolean ").reAppend(name).reAppend("Last = ").reAppend(name).reAppend("$list == null ? !").reAppend(name).reAppend("$iterator.hasNext() : ")
+                        .reAppend(name).reAppend("Index == ").reAppend(name).reAppend("$size - 1;\n");
+            }
+            sb.append("                boolean ").reAppend(name).reAppend("First = ").reAppend(name).reAppend("Index == 0;\n")
+                    .append("                boolean ").reAppend(name).reAppend("Odd = (").reAppend(name).reAppend("Index & 1) == 0;\n")
+                    .append("                boolean ").reAppend(name).reAppend("Even = !").reAppend(name).reAppend("Odd;\n");
+        }
+
+        //the declared type of the array a loop walks, or null if its source isn't known to be an array
+        private String loopArrayType(Directive dir) {
+            String type = visibleTypes(dir.tokenPos, new ArrayDeque<ClassInfo>()).get(dir.loopSource);
+            if (type != null) {
+                type = type.trim();
+                if (type.endsWith("...")) {
+                    return type.substring(0, type.length() - 3).trim() + "[]";
+                }
+                return type.endsWith("]") ? type : null;
+            }
+            //only arrays hold primitives
+            return Arrays.asList(PRIMITIVE_TYPES).contains(dir.loopType) ? dir.loopType + "[]" : null;
+        }
 
         private void addInclude(Directive dir) {
             assert(dir.dirType == INCLUDE);
-            if (dir.conditional == null) {
+            String staticTemplate = getStaticTemplate(dir);
+            if (staticTemplate != null) {
+                //the included template still renders itself if a default layout applies to it
+                sb.append("            if (BBTemplates.getDefaultTemplate(\"").reAppend(getIncludedName(dir)).reAppend("\") == ILayout.EMPTY) {\n");
+                addStaticText(staticTemplate, dir.token.getLine());
+                sb.append("            } else {\n")
+                        .append("                ").reAppend(dir.className).reAppend(".renderInto(buffer);\n")
+                        .append("            }\n");
+            } else if (dir.parallel || dir.deferred) {
+                if (dir.conditional != null) {
+                    sb.append("            if(").reAppend(dir.conditional).reAppend("){\n");
+                }
+                addForkedInclude(dir);
+                if (dir.conditional != null) {
+                    sb.append("            ").reAppend("}\n");
+                }
+            } else if (dir.conditional == null) {
                 if (dir.params != null) {
                     sb.append("            ").reAppend(dir.className).reAppend(".renderInto(buffer, ").reAppend(dir.params).reAppend(");\n");
                 } else {
@@ -729,9 +2184,43 @@ public class BBTemplateGen {
             }
         }
 
+        /**
+         * Forks a parallel or deferred include onto the parallel executor. Its arguments are evaluated right away
+         * and handed to the rendering thread as the lambda's parameters, since the locals they use may change before
+         * it runs.
+         */
+        private void addForkedInclude(Directive dir) {
+            List<String> args = dir.params == null || dir.params.trim().isEmpty() ? Collections.<String>emptyList() : splitTopLevel(dir.params);
+            StringBuilder values = new StringBuilder();
+            StringBuilder names = new StringBuilder();
+            for (int i = 0; i < args.size(); i++) {
+                values.append(", ").append(args.get(i).trim());
+                names.append(", $").append(i);
+            }
+            sb.append("            ").reAppend(dir.parallel ? "ParallelIncludes" : "DeferredIncludes").reAppend(".fork(buffer").reAppend(values.toString()).reAppend(", ($out").reAppend(names.toString())
+                    .reAppend(") -> ").reAppend(dir.className).reAppend(".renderInto($out").reAppend(names.toString()).reAppend("));\n");
+        }
+
+        //true if the body has deferred includes, or parallel ones if deferred is false
+        private boolean hasForkedIncludes(int startPos, Integer endPos, boolean deferred) {
+            if (endPos == null) {
+                endPos = tokens.size() - 1;
+            }
+            for (int i = startPos; i <= endPos; i++) {
+                Directive dir = dirMap.get(i);
+                if (dir != null && dir.dirType == INCLUDE && (deferred ? dir.deferred : dir.parallel)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         private void addSection(Directive dir) {
             assert(dir.dirType == SECTION);
-            if (dir.params != null) {
+            if (currClass.nestedClasses.get(dir.tokenPos + 1).asMethod) {
+                String args = dir.params == null ? "" : ", " + dir.makeParamsStringWithoutTypes(dir.paramsList);
+                sb.append("            renderImpl$").reAppend(dir.className).reAppend("(buffer, null").reAppend(args).reAppend(");\n");
+            } else if (dir.params != null) {
                 String paramsWithoutTypes = dir.makeParamsStringWithoutTypes(dir.paramsList);
                 sb.append("            ").reAppend(dir.className).reAppend(".renderInto(buffer, ").reAppend(paramsWithoutTypes).reAppend(");\n");
             } else {
@@ -741,6 +2230,166 @@ public class BBTemplateGen {
 
     }
 
+    //the number of bytes the UTF-8 encoding of a part of a string takes, with unpaired surrogates taking one
+    static int utf8Length(String text, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    //escapes template text for a java string literal, dropping carriage returns as the templates always have
+    static String escapeJavaString(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\r':
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '"':
+                    escaped.append("\\\"");
+                    break;
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x7f) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Returns the type and name of each local a top level statement declares, an empty list if it isn't a
+     * declaration, or null if it declares a local that can't be passed on to another method
+     */
+    private static List<String[]> parseDeclarations(String statement) {
+        String trimmed = statement.trim();
+        if (trimmed.startsWith("@")) {
+            return null;
+        }
+        Matcher matcher = DECLARATION.matcher(trimmed);
+        if (!matcher.lookingAt() || STATEMENT_KEYWORDS.contains(matcher.group(1))) {
+            return Collections.emptyList();
+        }
+        String rest = trimmed.substring(matcher.end()).trim();
+        if (!rest.isEmpty() && !rest.startsWith("=") && !rest.startsWith(",") && !rest.startsWith("[")) {
+            return Collections.emptyList();
+        }
+        String type = matcher.group(1).replaceAll("\\s", "");
+        if (type.equals("var")) {
+            return null;
+        }
+        type += (matcher.group(2) == null ? "" : matcher.group(2).trim()) + matcher.group(3).replaceAll("\\s", "");
+        List<String[]> declared = new ArrayList<>();
+        for (String declarator : splitTopLevel(trimmed.substring(matcher.start(4)))) {
+            Matcher declaratorMatcher = DECLARATOR.matcher(declarator.trim());
+            if (!declaratorMatcher.matches()) {
+                //declared without an initializer, which would not be definitely assigned in the next method
+                return null;
+            }
+            declared.add(new String[]{type + declaratorMatcher.group(2).replaceAll("\\s", ""), declaratorMatcher.group(1)});
+        }
+        return declared;
+    }
+
+    /**
+     * Returns the target and arguments of an expression that is nothing but a call to a template's or section's
+     * static render method, e.g. {"Index.card", "title, 3"} for Index.card.render(title, 3), or null otherwise
+     */
+    static String[] parseRenderCall(String expression) {
+        String expr = expression.trim();
+        Matcher matcher = RENDER_CALL.matcher(expr);
+        if (!matcher.lookingAt() || closingParen(expr, matcher.end() - 1) != expr.length() - 1) {
+            return null;
+        }
+        return new String[]{matcher.group(1).replaceAll("\\s", ""), expr.substring(matcher.end(), expr.length() - 1).trim()};
+    }
+
+    //the position of the parenthesis closing the one at pos, or -1 if it isn't closed
+    private static int closingParen(String code, int pos) {
+        int depth = 0;
+        int i = pos;
+        while (i < code.length()) {
+            int end = skipLiteral(code, i);
+            if (end > i) {
+                i = end;
+                continue;
+            }
+            char c = code.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    //splits code at the commas that are outside of any brackets and literals
+    private static List<String> splitTopLevel(String code) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        int i = 0;
+        while (i < code.length()) {
+            int end = skipLiteral(code, i);
+            if (end > i) {
+                i = end;
+                continue;
+            }
+            char c = code.charAt(i);
+            if (c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                parts.add(code.substring(start, i));
+                start = i + 1;
+            }
+            i++;
+        }
+        parts.add(code.substring(start));
+        return parts;
+    }
+
+    //the position after the string or char literal starting at pos, or pos if there is none
+    private static int skipLiteral(String code, int pos) {
+        char quote = code.charAt(pos);
+        if (quote != '"' && quote != '\'') {
+            return pos;
+        }
+        int i = pos + 1;
+        while (i < code.length() && code.charAt(i) != quote) {
+            i += code.charAt(i) == '\\' ? 2 : 1;
+        }
+        return Math.min(i + 1, code.length());
+    }
+
     public String generateCode(String fullyQualifiedName, String source, String fileName) {
         FileGenerator generator = new FileGenerator(fullyQualifiedName, fileName, source);
         return generator.getFileContents();
@@ -13,22 +13,27 @@ import javax.tools.DiagnosticListener;
 import javax.tools.JavaFileObject;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Set;
 
 class BBModel extends AbstractSingleFileModel {
+    private final BBSourceProducer _producer;
     private String _source;
     private BBIssueContainer _issues;
 
-    BBModel(String fqn, Set<IFile> files) {
+    BBModel(BBSourceProducer producer, String fqn, Set<IFile> files) {
         super(fqn, files);
+        _producer = producer;
         init();
     }
 
     private void init() {
         IFile file = getFile();
         try {
-            String templateSource = StreamUtil.getContent(new InputStreamReader(file.openInputStream()));
-            BBTemplateGen generator = new BBTemplateGen();
+            String templateSource = StreamUtil.getContent(new InputStreamReader(file.openInputStream(), StandardCharsets.UTF_8));
+            BBTemplateGen generator = new BBTemplateGen(BBSourceProducer.getMode(), BBSourceProducer.getSectionsAsMethods());
+            generator.setTemplateSources(_producer::findTemplateSource);
+            generator.setStaticTextResources(BBSourceProducer.getStaticTextResources());
             _source = generator.generateCode(getFqn(), templateSource, file.getName());
             _issues = generator.getIssues();
         } catch (IOException e) {
@@ -47,11 +52,15 @@ class BBModel extends AbstractSingleFileModel {
         return _source;
     }
     void report(DiagnosticListener errorHandler) {
-        if (_issues.isEmpty() || errorHandler == null) {
+        String modeWarning = BBSourceProducer.getModeWarning();
+        if ((_issues.isEmpty() && modeWarning == null) || errorHandler == null) {
             return;
         }
 
         JavaFileObject file = new SourceJavaFileObject(getFile().toURI());
+        if (modeWarning != null) {
+            errorHandler.report(new JavacDiagnostic(file, Diagnostic.Kind.WARNING, 0, 1, 1, modeWarning));
+        }
         for (IIssue issue : _issues.getIssues()) {
             Diagnostic.Kind kind = issue.getKind() == IIssue.Kind.Error ? Diagnostic.Kind.ERROR : Diagnostic.Kind.WARNING;
             errorHandler.report(new JavacDiagnostic(file, kind, issue.getStartOffset(), issue.getLine(), issue.getColumn(), issue.getMessage()));
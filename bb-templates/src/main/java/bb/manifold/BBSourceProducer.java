@@ -10,12 +10,27 @@ import javax.tools.DiagnosticListener;
 import javax.tools.JavaFileObject;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 public class BBSourceProducer extends JavaSourceProducer<BBModel> {
+    /**
+     * System property selecting the code generation mode for a build, e.g. -Dbb.codegen.mode=production
+     */
+    public static final String MODE_PROPERTY = "bb.codegen.mode";
+    /**
+     * System property generating sections as methods of their templates, e.g. -Dbb.codegen.sectionsAsMethods=true
+     */
+    public static final String SECTIONS_AS_METHODS_PROPERTY = "bb.codegen.sectionsAsMethods";
+    /**
+     * System property rendering long static texts from the template files on the classpath instead of from string
+     * constants, e.g. -Dbb.codegen.staticTextResources=true
+     */
+    public static final String STATIC_TEXT_RESOURCES_PROPERTY = "bb.codegen.staticTextResources";
 
     public void init( ITypeLoader typeLoader )
     {
-        init(typeLoader, BBModel::new);
+        init(typeLoader, (fqn, files) -> new BBModel(this, fqn, files));
     }
 
     @Override
@@ -44,6 +59,64 @@ public class BBSourceProducer extends JavaSourceProducer<BBModel> {
         return file.getExtension().equals("bb");
     }
 
+    /**
+     * The mode named by the mode property, DEVELOPMENT if it is not set or names no mode, see {@link #getModeWarning()}
+     */
+    static BBTemplateGen.Mode getMode() {
+        BBTemplateGen.Mode mode = parseMode(System.getProperty(MODE_PROPERTY));
+        return mode == null ? BBTemplateGen.Mode.DEVELOPMENT : mode;
+    }
+
+    /**
+     * Returns why the mode property was ignored, or null if it is not set or names a mode
+     */
+    static String getModeWarning() {
+        String mode = System.getProperty(MODE_PROPERTY);
+        if (mode == null || parseMode(mode) != null) {
+            return null;
+        }
+        return "Unknown " + MODE_PROPERTY + " '" + mode + "', expected development or production; " +
+                "generating development code";
+    }
+
+    private static BBTemplateGen.Mode parseMode(String mode) {
+        if (mode == null) {
+            return null;
+        }
+        for (BBTemplateGen.Mode value : BBTemplateGen.Mode.values()) {
+            if (value.name().equalsIgnoreCase(mode.trim())) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    static boolean getSectionsAsMethods() {
+        return Boolean.getBoolean(SECTIONS_AS_METHODS_PROPERTY);
+    }
+
+    static boolean getStaticTextResources() {
+        return Boolean.getBoolean(STATIC_TEXT_RESOURCES_PROPERTY);
+    }
+
+    /**
+     * Returns the source of the template with the given fully qualified name, or null if there is none
+     */
+    String findTemplateSource(String fqn) {
+        if (!isTopLevelType(fqn)) {
+            return null;
+        }
+        List<IFile> files = findFilesForType(fqn);
+        if (files.isEmpty()) {
+            return null;
+        }
+        try {
+            return StreamUtil.getContent(new InputStreamReader(files.get(0).openInputStream(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     @Override
     protected String produce(String topLevelFqn, String existing, BBModel model, DiagnosticListener<JavaFileObject> errorHandler) {
         String source = model.getSource();
@@ -4,8 +4,8 @@ import bb.BBTemplates;
 import sun.misc.Unsafe;
 
 import java.io.IOException;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class BaseBBTemplate {
@@ -19,16 +19,177 @@ public class BaseBBTemplate {
             throw new RuntimeException(ex);
         }
     }
+    //the encodings handed out by utf8(), which go away with the classes of the texts they encode
+    private static final Map<String, byte[]> ENCODED = Collections.synchronizedMap(new WeakHashMap<>());
     private ILayout _explicitLayout = null;
+    //the flattened header and footer of a static layout, see setStaticLayoutText
+    private String _staticHeader = null;
+    private String _staticFooter = null;
+    private byte[] _staticHeaderBytes;
+    private byte[] _staticFooterBytes;
+    //buffers are never presized beyond this many characters
+    private static final int MAX_PRESIZE = 1 << 20;
+    //a running estimate of the length of the output of render(), see newBuffer
+    private int _sizeEstimate = 16;
 
     public String toS(Object o) {
         return o == null ? "" : o.toString();
     }
 
+    /*
+     * Expressions are rendered through the overloads below, which the java compiler picks by the static type of
+     * the expression, so numbers and character sequences are appended without boxing or copying them. Templates
+     * only call them if their superclass is this class, or overrides them along with toS(Object), see
+     * BBTemplateGen.hasTypedToS; any other superclass keeps rendering every value through its own toS methods.
+     */
+
+    public void toS(Appendable buffer, Object o) throws IOException {
+        buffer.append(toS(o));
+    }
+
+    public void toS(Appendable buffer, CharSequence s) throws IOException {
+        if (s == null) {
+            return;
+        } else if (buffer instanceof StringBuilder) {
+            ((StringBuilder) buffer).append(s);
+        } else if (buffer instanceof ByteSink) {
+            ((ByteSink) buffer).append(s);
+        } else {
+            buffer.append(s);
+        }
+    }
+
+    public void toS(Appendable buffer, int i) throws IOException {
+        toS(buffer, (long) i);
+    }
+
+    public void toS(Appendable buffer, long l) throws IOException {
+        if (buffer instanceof StringBuilder) {
+            ((StringBuilder) buffer).append(l);
+        } else if (buffer instanceof ByteSink) {
+            ((ByteSink) buffer).appendDecimal(l);
+        } else {
+            buffer.append(Long.toString(l));
+        }
+    }
+
+    public void toS(Appendable buffer, char c) throws IOException {
+        buffer.append(c);
+    }
+
+    public void toS(Appendable buffer, boolean b) throws IOException {
+        buffer.append(b ? "true" : "false");
+    }
+
+    protected static void appendStatic(Appendable buffer, String text, byte[] utf8) throws IOException {
+        //the common buffers are called directly, which keeps these call sites monomorphic
+        if (buffer instanceof StringBuilder) {
+            ((StringBuilder) buffer).append(text);
+        } else if (buffer instanceof ByteSink) {
+            ((ByteSink) buffer).writeSegment(utf8);
+        } else {
+            buffer.append(text);
+        }
+    }
+
+    protected static void appendStatic(Appendable buffer, StaticText.Slice text) throws IOException {
+        text.appendTo(buffer);
+    }
+
+    /**
+     * The UTF-8 encoding of a static text. Templates repeating the same markup share one encoding of it, just
+     * like the JVM already shares their string literals.
+     */
+    protected static byte[] utf8(String text) {
+        byte[] bytes = ENCODED.get(text);
+        if (bytes == null) {
+            bytes = text.getBytes(StandardCharsets.UTF_8);
+            byte[] shared = ENCODED.putIfAbsent(text, bytes);
+            if (shared != null) {
+                bytes = shared;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Seeds the size estimate with the length of the template's static text, before anything was rendered
+     */
+    protected void setSizeEstimate(int length) {
+        _sizeEstimate = Math.max(length, 16);
+    }
+
+    /**
+     * A pooled buffer for render() that is large enough for the output of most previous renders, so that it rarely
+     * has to grow. The buffer is passed to {@link #recordSize(StringBuilder)} once the template is rendered, which
+     * returns it to the pool.
+     */
+    protected StringBuilder newBuffer() {
+        return newBuffer(_sizeEstimate);
+    }
+
+    protected String recordSize(StringBuilder buffer) {
+        _sizeEstimate = nextSizeEstimate(_sizeEstimate, buffer.length());
+        return releaseBuffer(buffer);
+    }
+
+    protected static StringBuilder newBuffer(int sizeEstimate) {
+        return RenderBuffers.acquire(Math.min(sizeEstimate + (sizeEstimate >> 4), MAX_PRESIZE));
+    }
+
+    //the content of a buffer from newBuffer, which goes back to the pool
+    protected static String releaseBuffer(StringBuilder buffer) {
+        String result = buffer.toString();
+        RenderBuffers.release(buffer);
+        return result;
+    }
+
+    protected RenderResult recordResult(StringBuilder buffer) {
+        _sizeEstimate = nextSizeEstimate(_sizeEstimate, buffer.length());
+        return toResult(buffer);
+    }
+
+    //a buffer from newBuffer as a result, which gives it back to the pool once released
+    protected static RenderResult toResult(StringBuilder buffer) {
+        return RenderResult.ofBuffer(buffer);
+    }
+
+    /**
+     * Follows larger outputs right away, so the next buffer won't have to grow, and shrinks slowly towards smaller
+     * ones. Concurrent renders may lose each other's updates, which only makes the estimate a little less exact.
+     */
+    protected static int nextSizeEstimate(int sizeEstimate, int length) {
+        return length >= sizeEstimate ? length : sizeEstimate - ((sizeEstimate - length) >> 3);
+    }
+
     protected void setLayout(ILayout layout) {
         _explicitLayout = layout;
     }
 
+    /**
+     * Called by the constructor of a layout whose own header and footer are static text. If the layouts it is
+     * nested in are static as well, the complete header and footer are flattened into single strings, which
+     * beforeRender and afterRender then write with one append each.
+     */
+    protected void setStaticLayoutText(String header, String footer) {
+        String enclosingHeader = _explicitLayout == null ? "" : _explicitLayout.staticHeader();
+        String enclosingFooter = _explicitLayout == null ? "" : _explicitLayout.staticFooter();
+        if (enclosingHeader != null && enclosingFooter != null) {
+            _staticHeader = enclosingHeader + header;
+            _staticFooter = footer + enclosingFooter;
+            _staticHeaderBytes = utf8(_staticHeader);
+            _staticFooterBytes = utf8(_staticFooter);
+        }
+    }
+
+    public String staticHeader() {
+        return _staticHeader;
+    }
+
+    public String staticFooter() {
+        return _staticFooter;
+    }
+
     protected ILayout getTemplateLayout() {
         if (_explicitLayout != null) {
             return _explicitLayout;
@@ -43,16 +204,35 @@ public class BaseBBTemplate {
 
     protected void beforeRender(Appendable buffer, ILayout override, boolean outerTemplate) throws IOException {
         if (outerTemplate) {
+            boolean earlyFlush = buffer instanceof StreamingSink && ((StreamingSink) buffer).takeEarlyFlush();
             ILayout templateLayout = override == null ? getTemplateLayout() : override;
-            templateLayout.header(buffer);
+            if (templateLayout instanceof BaseBBTemplate && ((BaseBBTemplate) templateLayout)._staticHeader != null) {
+                BaseBBTemplate staticLayout = (BaseBBTemplate) templateLayout;
+                appendStatic(buffer, staticLayout._staticHeader, staticLayout._staticHeaderBytes);
+                //flushing commits the response, which is only worth it for a header that is there before the body
+                if (earlyFlush && !staticLayout._staticHeader.isEmpty()) {
+                    ((StreamingSink) buffer).flush();
+                }
+            } else {
+                templateLayout.header(buffer);
+            }
         }
     }
 
-    protected void afterRender(Appendable buffer, ILayout override, boolean outerTemplate, long renderTime) throws IOException {
+    protected void afterRender(Appendable buffer, ILayout override, boolean outerTemplate) throws IOException {
         if (outerTemplate) {
             ILayout templateLayout = override == null ? getTemplateLayout() : override;
-            templateLayout.footer(buffer);
+            if (templateLayout instanceof BaseBBTemplate && ((BaseBBTemplate) templateLayout)._staticFooter != null) {
+                BaseBBTemplate staticLayout = (BaseBBTemplate) templateLayout;
+                appendStatic(buffer, staticLayout._staticFooter, staticLayout._staticFooterBytes);
+            } else {
+                templateLayout.footer(buffer);
+            }
         }
+    }
+
+    protected void afterRender(Appendable buffer, ILayout override, boolean outerTemplate, long renderTime) throws IOException {
+        afterRender(buffer, override, outerTemplate);
         BBTemplates.getTracer().trace(this.getClass(), renderTime);
     }
 
@@ -67,9 +247,9 @@ public class BaseBBTemplate {
         while (elementToRemove < currentStack.length) {
             StackTraceElement curr = currentStack[elementToRemove];
             if (curr.getClassName().equals(templateClassName)) {
-                if (curr.getMethodName().equals("renderImpl")) {
+                if (isBodyMethod(curr, "renderImpl")) {
                     handleTemplateException(e, fileName, lineStart, bbLineNumbers, elementToRemove);
-                } else if (curr.getMethodName().equals("footer") || curr.getMethodName().equals("header")) {
+                } else if (isBodyMethod(curr, "footer") || isBodyMethod(curr, "header")) {
                     handleLayoutException(e, fileName, lineStart, bbLineNumbers, elementToRemove);
                 }
             }
@@ -81,29 +261,69 @@ public class BaseBBTemplate {
         StackTraceElement[] currentStack = e.getStackTrace();
         int lineNumber = currentStack[elementToRemove].getLineNumber();
         int javaLineNum = lineNumber - lineStart;
+        if (javaLineNum < 0 || javaLineNum >= bbLineNumbers.length) {
+            throwBBException(e, currentStack);
+        }
 
-        String declaringClass = currentStack[elementToRemove + 1].getClassName();
-        String methodName = currentStack[elementToRemove + 1].getMethodName();
+        //the frames of the methods a split body was continued from are dropped along with the renderImpl frame
+        int caller = elementToRemove + 1 + countContinuedFrames(currentStack, elementToRemove);
+        String declaringClass = currentStack[caller].getClassName();
+        String methodName = currentStack[caller].getMethodName();
 
         StackTraceElement b = new StackTraceElement(declaringClass, methodName, fileName, bbLineNumbers[javaLineNum]);
-        currentStack[elementToRemove + 1] = b;
+        currentStack[caller] = b;
 
-        System.arraycopy(currentStack, elementToRemove + 1, currentStack, elementToRemove, currentStack.length-1-elementToRemove);
-        throwBBException(e, currentStack);
+        throwBBException(e, removeFrames(currentStack, elementToRemove, caller - elementToRemove));
     }
 
     private void handleLayoutException(Exception e, String fileName, int lineStart, int[] bbLineNumbers, int elementToReplace) {
         StackTraceElement[] currentStack = e.getStackTrace();
         int lineNumber = currentStack[elementToReplace].getLineNumber();
         int javaLineNum = lineNumber - lineStart;
+        if (javaLineNum < 0 || javaLineNum >= bbLineNumbers.length) {
+            throwBBException(e, currentStack);
+        }
 
         String declaringClass = currentStack[elementToReplace].getClassName();
         String methodName = currentStack[elementToReplace].getMethodName();
+        int continuedFrames = countContinuedFrames(currentStack, elementToReplace);
 
-        StackTraceElement b = new StackTraceElement(declaringClass, methodName, fileName, bbLineNumbers[javaLineNum]);
+        StackTraceElement b = new StackTraceElement(declaringClass, bodyName(methodName), fileName, bbLineNumbers[javaLineNum]);
         currentStack[elementToReplace] = b;
 
-        throwBBException(e, currentStack);
+        throwBBException(e, removeFrames(currentStack, elementToReplace + 1, continuedFrames));
+    }
+
+    //true for the generated method with the given name, or one of the methods generated from it
+    private boolean isBodyMethod(StackTraceElement element, String methodName) {
+        return element.getClassName().equals(getClass().getName())
+                && (element.getMethodName().equals(methodName) || element.getMethodName().startsWith(methodName + "$"));
+    }
+
+    //the name of the method a split body started in, i.e. without the numbered suffix of its continuations
+    private static String bodyName(String methodName) {
+        return methodName.replaceFirst("(\\$\\d+)+$", "");
+    }
+
+    //the number of frames below the given one that belong to the same split body
+    private int countContinuedFrames(StackTraceElement[] stack, int element) {
+        String bodyName = bodyName(stack[element].getMethodName());
+        int count = 0;
+        while (element + count + 1 < stack.length) {
+            StackTraceElement next = stack[element + count + 1];
+            if (!next.getClassName().equals(stack[element].getClassName()) || !bodyName(next.getMethodName()).equals(bodyName)) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private StackTraceElement[] removeFrames(StackTraceElement[] stack, int from, int count) {
+        StackTraceElement[] trimmed = new StackTraceElement[stack.length - count];
+        System.arraycopy(stack, 0, trimmed, 0, from);
+        System.arraycopy(stack, from + count, trimmed, from, stack.length - from - count);
+        return trimmed;
     }
 
     private void throwBBException(Exception e, StackTraceElement[] currentStack) {
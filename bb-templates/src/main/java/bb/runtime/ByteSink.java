@@ -0,0 +1,215 @@
+package bb.runtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An Appendable that produces UTF-8 bytes. Static template text is written as pre-encoded bytes through
+ * {@link #write(byte[])}, so only dynamic content has to be encoded while rendering.
+ */
+public abstract class ByteSink implements StreamingSink {
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    //the array content is encoded into, which a subclass flushing into arrays of its own may swap in flushBuffer
+    protected byte[] _buffer;
+    protected int _count;
+    private char _pendingHighSurrogate;
+    private boolean _earlyFlush;
+
+    protected ByteSink(int capacity) {
+        _buffer = new byte[Math.max(capacity, 32)];
+    }
+
+    /**
+     * @param buffer the first array to encode into, any flushBuffer override must leave at least 32 bytes of room
+     */
+    protected ByteSink(byte[] buffer) {
+        _buffer = buffer;
+    }
+
+    /**
+     * Receives the buffered bytes when the buffer fills up or is flushed
+     */
+    protected abstract void writeThrough(byte[] bytes, int offset, int length) throws IOException;
+
+    public void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        finishPendingSurrogate();
+        if (length >= _buffer.length) {
+            flushBuffer();
+            writeThrough(bytes, offset, length);
+        } else {
+            if (length > _buffer.length - _count) {
+                flushBuffer();
+            }
+            System.arraycopy(bytes, offset, _buffer, _count, length);
+            _count += length;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer, leaving its position alone
+     */
+    public void write(ByteBuffer bytes) throws IOException {
+        ByteBuffer source = bytes.duplicate();
+        if (source.hasArray()) {
+            write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            return;
+        }
+        finishPendingSurrogate();
+        while (source.hasRemaining()) {
+            if (_count == _buffer.length) {
+                flushBuffer();
+            }
+            int chunk = Math.min(source.remaining(), _buffer.length - _count);
+            source.get(_buffer, _count, chunk);
+            _count += chunk;
+        }
+    }
+
+    /**
+     * Writes bytes that are never modified afterwards, such as the pre-encoded static text of a template. Sinks
+     * that keep their output in segments may reference such arrays instead of copying them.
+     */
+    public void writeSegment(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public final ByteSink append(CharSequence csq) throws IOException {
+        if (csq == null) {
+            csq = "null";
+        }
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public final ByteSink append(CharSequence csq, int start, int end) throws IOException {
+        if (csq == null) {
+            csq = "null";
+        }
+        for (int i = start; i < end; i++) {
+            char c = csq.charAt(i);
+            if (c < 0x80 && _pendingHighSurrogate == 0) {
+                if (_count == _buffer.length) {
+                    flushBuffer();
+                }
+                _buffer[_count++] = (byte) c;
+            } else {
+                encode(c);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public final ByteSink append(char c) throws IOException {
+        encode(c);
+        return this;
+    }
+
+    /**
+     * Appends the decimal digits of a number without creating a String for it
+     */
+    public final ByteSink appendDecimal(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            return append("-9223372036854775808");
+        }
+        finishPendingSurrogate();
+        ensureRoom(20);
+        if (value < 0) {
+            _buffer[_count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value; rest >= 10; rest /= 10) {
+            digits++;
+        }
+        _count += digits;
+        int pos = _count;
+        do {
+            _buffer[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return this;
+    }
+
+    @Override
+    public void setEarlyFlush(boolean earlyFlush) {
+        _earlyFlush = earlyFlush;
+    }
+
+    @Override
+    public boolean takeEarlyFlush() {
+        boolean earlyFlush = _earlyFlush;
+        _earlyFlush = false;
+        return earlyFlush;
+    }
+
+    public void flush() throws IOException {
+        finishPendingSurrogate();
+        flushBuffer();
+    }
+
+    protected void flushBuffer() throws IOException {
+        if (_count > 0) {
+            int count = _count;
+            _count = 0;
+            writeThrough(_buffer, 0, count);
+        }
+    }
+
+    private void encode(char c) throws IOException {
+        if (_pendingHighSurrogate != 0) {
+            char high = _pendingHighSurrogate;
+            _pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                ensureRoom(4);
+                _buffer[_count++] = (byte) (0xf0 | (codePoint >> 18));
+                _buffer[_count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                _buffer[_count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                _buffer[_count++] = (byte) (0x80 | (codePoint & 0x3f));
+                return;
+            }
+            //an unpaired surrogate, encoded as '?' just like String.getBytes does
+            ensureRoom(1);
+            _buffer[_count++] = '?';
+        }
+        if (c < 0x80) {
+            ensureRoom(1);
+            _buffer[_count++] = (byte) c;
+        } else if (c < 0x800) {
+            ensureRoom(2);
+            _buffer[_count++] = (byte) (0xc0 | (c >> 6));
+            _buffer[_count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            _pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            ensureRoom(1);
+            _buffer[_count++] = '?';
+        } else {
+            ensureRoom(3);
+            _buffer[_count++] = (byte) (0xe0 | (c >> 12));
+            _buffer[_count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            _buffer[_count++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    protected final void finishPendingSurrogate() throws IOException {
+        if (_pendingHighSurrogate != 0) {
+            _pendingHighSurrogate = 0;
+            ensureRoom(1);
+            _buffer[_count++] = '?';
+        }
+    }
+
+    private void ensureRoom(int length) throws IOException {
+        if (_buffer.length - _count < length) {
+            flushBuffer();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package bb.runtime;
+
+import bb.BBTemplates;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The buffer of a template body with deferred includes. A deferred include leaves a placeholder in the output and
+ * is rendered on the executor set with {@link BBTemplates#setParallelExecutor}, while the body goes on rendering.
+ * Once the body is done, {@link #join(Appendable)} flushes it to a {@link StreamingSink}, so the client gets the page
+ * without waiting for any deferred include, and then writes each deferred include as soon as it is done, along with
+ * the {@link DeferredMarkup} that moves it into its placeholder, flushing after each one.
+ *
+ * A render streamed with {@link #stream} collects the deferred includes of every template that renders into its
+ * sink, however deeply nested, and only writes them out once the outermost template is done. Elsewhere, e.g. in a
+ * template rendered into a String, nothing is sent before the page is done, so deferred includes render in place.
+ *
+ * Its methods are only called by the thread rendering the body.
+ */
+public final class DeferredIncludes implements Appendable {
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    //the deferred includes of the render streaming on this thread, if any
+    private static final ThreadLocal<DeferredIncludes> STREAMING = new ThreadLocal<>();
+
+    private final Appendable _target;
+    private final DeferredMarkup _markup = BBTemplates.getDeferredMarkup();
+    //the deferred includes that are done, in the order they were done in
+    private final BlockingQueue<Rendered> _done = new LinkedBlockingQueue<>();
+    private int _forked;
+    //the number of bodies sharing this buffer, e.g. templates included by a body with deferred includes
+    private int _depth = 1;
+
+    private DeferredIncludes(Appendable target) {
+        _target = target;
+    }
+
+    /**
+     * Renders into a sink, and then writes out the deferred includes of all the templates the render went through
+     * as they are done
+     */
+    public static void stream(StreamingSink sink, Consumer<Appendable> render) throws IOException {
+        DeferredIncludes outer = STREAMING.get();
+        DeferredIncludes deferred = new DeferredIncludes(sink);
+        STREAMING.set(deferred);
+        try {
+            render.accept(sink);
+        } finally {
+            STREAMING.set(outer);
+        }
+        deferred.writeDeferred();
+    }
+
+    /**
+     * The buffer a body with deferred includes renders into instead of the given one, which is the given one itself
+     * unless it streams into a {@link StreamingSink}
+     */
+    public static Appendable open(Appendable buffer) {
+        DeferredIncludes deferred = find(buffer);
+        if (deferred != null) {
+            deferred._depth++;
+            return buffer;
+        }
+        return unwrap(buffer) instanceof StreamingSink ? new DeferredIncludes(buffer) : buffer;
+    }
+
+    /**
+     * Writes out the deferred includes of the body that opened the buffer as they are done, and returns the buffer
+     * the body was given
+     */
+    public static Appendable join(Appendable buffer) throws IOException {
+        DeferredIncludes deferred = find(buffer);
+        if (deferred == null) {
+            return buffer;
+        }
+        if (--deferred._depth > 0) {
+            return buffer;
+        }
+        deferred.writeDeferred();
+        return deferred._target;
+    }
+
+    public static void fork(Appendable buffer, ParallelIncludes.Include0 include) throws IOException {
+        submit(buffer, include);
+    }
+
+    public static <A> void fork(Appendable buffer, A a, ParallelIncludes.Include1<A> include) throws IOException {
+        submit(buffer, out -> include.renderInto(out, a));
+    }
+
+    public static <A, B> void fork(Appendable buffer, A a, B b, ParallelIncludes.Include2<A, B> include) throws IOException {
+        submit(buffer, out -> include.renderInto(out, a, b));
+    }
+
+    public static <A, B, C> void fork(Appendable buffer, A a, B b, C c, ParallelIncludes.Include3<A, B, C> include) throws IOException {
+        submit(buffer, out -> include.renderInto(out, a, b, c));
+    }
+
+    public static <A, B, C, D> void fork(Appendable buffer, A a, B b, C c, D d, ParallelIncludes.Include4<A, B, C, D> include) throws IOException {
+        submit(buffer, out -> include.renderInto(out, a, b, c, d));
+    }
+
+    public static <A, B, C, D, E> void fork(Appendable buffer, A a, B b, C c, D d, E e, ParallelIncludes.Include5<A, B, C, D, E> include) throws IOException {
+        submit(buffer, out -> include.renderInto(out, a, b, c, d, e));
+    }
+
+    //the deferred buffer the body renders into, possibly through the buffer of its parallel includes, or else the
+    //one of the render streaming into that buffer
+    private static DeferredIncludes find(Appendable buffer) {
+        buffer = unwrap(buffer);
+        if (buffer instanceof DeferredIncludes) {
+            return (DeferredIncludes) buffer;
+        }
+        DeferredIncludes streaming = STREAMING.get();
+        return streaming != null && streaming._target == buffer ? streaming : null;
+    }
+
+    private static Appendable unwrap(Appendable buffer) {
+        while (buffer instanceof ParallelIncludes) {
+            buffer = ((ParallelIncludes) buffer).target();
+        }
+        return buffer;
+    }
+
+    //renders in place if the body has no deferred buffer, e.g. in a layout's header or when not streaming
+    private static void submit(Appendable buffer, ParallelIncludes.Include0 include) throws IOException {
+        DeferredIncludes deferred = find(buffer);
+        if (deferred == null) {
+            include.renderInto(buffer);
+            return;
+        }
+        String id = "bb-deferred-" + NEXT_ID.getAndIncrement();
+        //the placeholder goes through the body's buffer, which keeps it in place among parallel includes
+        deferred._markup.placeholder(buffer, id);
+        deferred._forked++;
+        CompletableFuture.supplyAsync(() -> {
+            StringBuilder out = RenderBuffers.acquire(256);
+            //the buffer is released by the thread that writes it out
+            RenderBuffers.detach(out);
+            include.renderInto(out);
+            return out;
+        }, BBTemplates.asyncExecutor(BBTemplates.getParallelExecutor()))
+                .whenComplete((out, failure) -> deferred._done.add(new Rendered(id, out, failure)));
+    }
+
+    private void writeDeferred() throws IOException {
+        if (_forked == 0) {
+            return;
+        }
+        if (_target instanceof StreamingSink) {
+            ((StreamingSink) _target).flush();
+        }
+        for (; _forked > 0; _forked--) {
+            Rendered rendered;
+            try {
+                rendered = _done.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a deferred include");
+            }
+            if (rendered.failure != null) {
+                Throwable cause = rendered.failure.getCause() != null ? rendered.failure.getCause() : rendered.failure;
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+            _markup.content(_target, rendered.id, rendered.out);
+            RenderBuffers.release(rendered.out);
+            if (_target instanceof StreamingSink) {
+                ((StreamingSink) _target).flush();
+            }
+        }
+    }
+
+    @Override
+    public Appendable append(CharSequence csq) throws IOException {
+        _target.append(csq);
+        return this;
+    }
+
+    @Override
+    public Appendable append(CharSequence csq, int start, int end) throws IOException {
+        _target.append(csq, start, end);
+        return this;
+    }
+
+    @Override
+    public Appendable append(char c) throws IOException {
+        _target.append(c);
+        return this;
+    }
+
+    private static final class Rendered {
+        final String id;
+        final StringBuilder out;
+        final Throwable failure;
+
+        Rendered(String id, StringBuilder out, Throwable failure) {
+            this.id = id;
+            this.out = out;
+            this.failure = failure;
+        }
+    }
+}
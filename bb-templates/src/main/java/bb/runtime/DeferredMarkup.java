@@ -0,0 +1,31 @@
+package bb.runtime;
+
+import java.io.IOException;
+
+/**
+ * The markup deferred includes are written with: a placeholder where the include belongs, and the rendered include
+ * along with whatever moves it into the placeholder, written once it is done
+ */
+public interface DeferredMarkup {
+
+    /**
+     * An empty element that is replaced with the content of a template element by an inline script
+     */
+    public static final DeferredMarkup HTML = new DeferredMarkup() {
+        @Override
+        public void placeholder(Appendable buffer, String id) throws IOException {
+            buffer.append("<div id=\"").append(id).append("\"></div>");
+        }
+
+        @Override
+        public void content(Appendable buffer, String id, CharSequence content) throws IOException {
+            buffer.append("<template id=\"").append(id).append("-content\">").append(content).append("</template><script>")
+                    .append("(function(){var t=document.getElementById(\"").append(id).append("-content\"),p=document.getElementById(\"")
+                    .append(id).append("\");p.parentNode.replaceChild(t.content,p);t.parentNode.removeChild(t);})();</script>\n");
+        }
+    };
+
+    void placeholder(Appendable buffer, String id) throws IOException;
+
+    void content(Appendable buffer, String id, CharSequence content) throws IOException;
+}
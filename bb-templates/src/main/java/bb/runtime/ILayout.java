@@ -10,10 +10,32 @@ public interface ILayout {
 
         @Override
         public void footer(Appendable buffer) throws IOException { return; }
+
+        @Override
+        public String staticHeader() { return ""; }
+
+        @Override
+        public String staticFooter() { return ""; }
     };
 
     void header(Appendable buffer) throws IOException;
 
     void footer(Appendable buffer) throws IOException;
 
+    /**
+     * The text header() writes if it is the same on every render, including the headers of any enclosing layouts,
+     * or null if it has to be rendered
+     */
+    default String staticHeader() {
+        return null;
+    }
+
+    /**
+     * The text footer() writes if it is the same on every render, including the footers of any enclosing layouts,
+     * or null if it has to be rendered
+     */
+    default String staticFooter() {
+        return null;
+    }
+
 }
@@ -0,0 +1,34 @@
+package bb.runtime;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Helpers for the code generated for for directives
+ */
+public final class Loops {
+
+    private Loops() {
+    }
+
+    /**
+     * The items of a loop, where null is iterated as no items at all
+     */
+    public static <T> Iterable<T> iterable(Iterable<T> items) {
+        return items == null ? Collections.<T>emptyList() : items;
+    }
+
+    public static <T> Iterable<T> iterable(T[] items) {
+        return items == null ? Collections.<T>emptyList() : Arrays.asList(items);
+    }
+
+    /**
+     * The items as a list that can be walked by index, or null if they have to be iterated
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> randomAccess(Iterable<T> items) {
+        return items instanceof RandomAccess && items instanceof List ? (List<T>) items : null;
+    }
+}
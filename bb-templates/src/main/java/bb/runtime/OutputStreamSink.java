@@ -0,0 +1,43 @@
+package bb.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A ByteSink that writes to an OutputStream through a fixed size buffer
+ */
+public class OutputStreamSink extends ByteSink {
+    private final OutputStream _out;
+    private final boolean _flushChunks;
+
+    public OutputStreamSink(OutputStream out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    public OutputStreamSink(OutputStream out, int capacity) {
+        this(out, capacity, false);
+    }
+
+    /**
+     * @param flushChunks whether the stream is flushed whenever a full buffer was written to it
+     */
+    public OutputStreamSink(OutputStream out, int capacity, boolean flushChunks) {
+        super(capacity);
+        _out = out;
+        _flushChunks = flushChunks;
+    }
+
+    @Override
+    protected void writeThrough(byte[] bytes, int offset, int length) throws IOException {
+        _out.write(bytes, offset, length);
+        if (_flushChunks) {
+            _out.flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        super.flush();
+        _out.flush();
+    }
+}
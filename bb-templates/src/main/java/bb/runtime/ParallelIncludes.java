@@ -0,0 +1,199 @@
+package bb.runtime;
+
+import bb.BBTemplates;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The buffer of a template body with parallel includes. Each parallel include is rendered into a buffer of its own
+ * on the executor set with {@link BBTemplates#setParallelExecutor}, while the body goes on rendering. Everything
+ * written up to the first parallel include goes straight to the target, everything after it is kept in order until
+ * {@link #join(Appendable)} writes it out once the includes before it are done. As soon as an include fails, the
+ * ones not done yet are cancelled and the failure is rethrown by join.
+ *
+ * Its methods are only called by the thread rendering the body.
+ */
+public final class ParallelIncludes implements Appendable {
+    private final Appendable _target;
+    //the texts and the includes rendering in parallel since the first include, in document order
+    private final List<Object> _pending = new ArrayList<>();
+    //the text after the last include, or null while nothing has been forked yet
+    private StringBuilder _current;
+    //completed with the failure of the first include that fails
+    private final CompletableFuture<StringBuilder> _failed = new CompletableFuture<>();
+    //the number of bodies sharing this buffer, e.g. sections rendered in place by a body with parallel includes
+    private int _depth = 1;
+
+    private ParallelIncludes(Appendable target) {
+        _target = target;
+    }
+
+    /**
+     * The buffer a body with parallel includes renders into instead of the given one
+     */
+    public static Appendable open(Appendable buffer) {
+        if (buffer instanceof ParallelIncludes) {
+            ((ParallelIncludes) buffer)._depth++;
+            return buffer;
+        }
+        return new ParallelIncludes(buffer);
+    }
+
+    /**
+     * Waits for the parallel includes of the body that opened the buffer, writes the body to its target and
+     * returns the buffer the body was given
+     */
+    public static Appendable join(Appendable buffer) throws IOException {
+        ParallelIncludes parallel = (ParallelIncludes) buffer;
+        if (--parallel._depth > 0) {
+            return parallel;
+        }
+        parallel.writePending();
+        return parallel._target;
+    }
+
+    public static void fork(Appendable buffer, Include0 include) {
+        submit(buffer, include);
+    }
+
+    public static <A> void fork(Appendable buffer, A a, Include1<A> include) {
+        submit(buffer, out -> include.renderInto(out, a));
+    }
+
+    public static <A, B> void fork(Appendable buffer, A a, B b, Include2<A, B> include) {
+        submit(buffer, out -> include.renderInto(out, a, b));
+    }
+
+    public static <A, B, C> void fork(Appendable buffer, A a, B b, C c, Include3<A, B, C> include) {
+        submit(buffer, out -> include.renderInto(out, a, b, c));
+    }
+
+    public static <A, B, C, D> void fork(Appendable buffer, A a, B b, C c, D d, Include4<A, B, C, D> include) {
+        submit(buffer, out -> include.renderInto(out, a, b, c, d));
+    }
+
+    public static <A, B, C, D, E> void fork(Appendable buffer, A a, B b, C c, D d, E e, Include5<A, B, C, D, E> include) {
+        submit(buffer, out -> include.renderInto(out, a, b, c, d, e));
+    }
+
+    //renders in place if the body has no parallel buffer, e.g. in a layout's header
+    private static void submit(Appendable buffer, Include0 include) {
+        if (!(buffer instanceof ParallelIncludes)) {
+            include.renderInto(buffer);
+            return;
+        }
+        ParallelIncludes parallel = (ParallelIncludes) buffer;
+        CompletableFuture<StringBuilder> rendered = CompletableFuture.supplyAsync(() -> {
+            StringBuilder out = RenderBuffers.acquire(256);
+            //the buffer is released by the thread that writes it out
+            RenderBuffers.detach(out);
+            include.renderInto(out);
+            return out;
+        }, BBTemplates.asyncExecutor(BBTemplates.getParallelExecutor()));
+        if (parallel._current != null && parallel._current.length() > 0) {
+            parallel._pending.add(parallel._current);
+        }
+        rendered.whenComplete((out, failure) -> {
+            if (failure != null) {
+                parallel._failed.completeExceptionally(failure);
+            }
+        });
+        parallel._pending.add(rendered);
+        parallel._current = new StringBuilder();
+    }
+
+    //the buffer this one writes its output to once its includes are done
+    Appendable target() {
+        return _target;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writePending() throws IOException {
+        try {
+            for (Object pending : _pending) {
+                if (pending instanceof StringBuilder) {
+                    _target.append((StringBuilder) pending);
+                } else {
+                    CompletableFuture<StringBuilder> include = (CompletableFuture<StringBuilder>) pending;
+                    //returns early if any later include fails first
+                    CompletableFuture.anyOf(include, _failed).join();
+                    StringBuilder rendered = include.join();
+                    _target.append(rendered);
+                    RenderBuffers.release(rendered);
+                }
+            }
+        } catch (CompletionException e) {
+            //includes not started yet are never run, the ones running are left to finish on their own
+            for (Object pending : _pending) {
+                if (pending instanceof CompletableFuture) {
+                    ((CompletableFuture<?>) pending).cancel(true);
+                }
+            }
+            Throwable cause = e;
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+        if (_current != null) {
+            _target.append(_current);
+        }
+        _pending.clear();
+        _current = null;
+    }
+
+    private Appendable out() {
+        return _current == null ? _target : _current;
+    }
+
+    @Override
+    public Appendable append(CharSequence csq) throws IOException {
+        out().append(csq);
+        return this;
+    }
+
+    @Override
+    public Appendable append(CharSequence csq, int start, int end) throws IOException {
+        out().append(csq, start, end);
+        return this;
+    }
+
+    @Override
+    public Appendable append(char c) throws IOException {
+        out().append(c);
+        return this;
+    }
+
+    public interface Include0 {
+        void renderInto(Appendable out);
+    }
+
+    public interface Include1<A> {
+        void renderInto(Appendable out, A a);
+    }
+
+    public interface Include2<A, B> {
+        void renderInto(Appendable out, A a, B b);
+    }
+
+    public interface Include3<A, B, C> {
+        void renderInto(Appendable out, A a, B b, C c);
+    }
+
+    public interface Include4<A, B, C, D> {
+        void renderInto(Appendable out, A a, B b, C c, D d);
+    }
+
+    public interface Include5<A, B, C, D, E> {
+        void renderInto(Appendable out, A a, B b, C c, D d, E e);
+    }
+}
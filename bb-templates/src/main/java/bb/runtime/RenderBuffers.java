@@ -0,0 +1,120 @@
+package bb.runtime;
+
+import bb.BBTemplates;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable StringBuilders for render(), pooled per thread so that a busy thread keeps rendering into buffers that
+ * have already grown to the size of its pages. Buffers are kept up to
+ * {@link BBTemplates#getMaxRetainedBufferCapacity()}, and none at all for virtual threads, which are never reused and
+ * would only leave their pools to the garbage collector.
+ *
+ * A buffer taken with {@link #acquire(int)} belongs to the caller until it is given back with
+ * {@link #release(StringBuilder)}, after which it must not be used anymore. Buffers that are never given back, e.g.
+ * because rendering failed, are still tracked for a while, and {@link #releaseAll()} returns them to the pool at the
+ * end of a request. {@link #releaseThread()} drops the pool of the current thread altogether.
+ */
+public final class RenderBuffers {
+    //the number of free buffers kept per thread, enough for a page and a nested render
+    static final int MAX_POOLED = 2;
+    //the number of acquired buffers that are tracked per thread
+    private static final int MAX_TRACKED = 16;
+
+    private static final ThreadLocal<Pool> POOL = ThreadLocal.withInitial(Pool::new);
+
+    private RenderBuffers() {
+    }
+
+    /**
+     * An empty buffer with at least the given capacity
+     */
+    public static StringBuilder acquire(int capacity) {
+        if (VirtualThreads.isVirtual(Thread.currentThread())) {
+            return new StringBuilder(capacity);
+        }
+        Pool pool = POOL.get();
+        StringBuilder buffer = pool.freeCount == 0 ? new StringBuilder(capacity) : pool.free[--pool.freeCount];
+        buffer.ensureCapacity(capacity);
+        if (pool.acquired.size() < MAX_TRACKED) {
+            pool.acquired.add(buffer);
+        }
+        return buffer;
+    }
+
+    public static void release(StringBuilder buffer) {
+        if (VirtualThreads.isVirtual(Thread.currentThread())) {
+            return;
+        }
+        detach(buffer);
+        POOL.get().offer(buffer);
+    }
+
+    //stops tracking a buffer that was handed to someone else, who may release it on any thread or never
+    static void detach(StringBuilder buffer) {
+        if (VirtualThreads.isVirtual(Thread.currentThread())) {
+            return;
+        }
+        List<StringBuilder> acquired = POOL.get().acquired;
+        for (int i = acquired.size() - 1; i >= 0; i--) {
+            if (acquired.get(i) == buffer) {
+                acquired.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns every buffer the current thread has acquired but not released yet to its pool
+     */
+    public static void releaseAll() {
+        if (VirtualThreads.isVirtual(Thread.currentThread())) {
+            return;
+        }
+        Pool pool = POOL.get();
+        for (StringBuilder buffer : pool.acquired) {
+            pool.offer(buffer);
+        }
+        pool.acquired.clear();
+    }
+
+    /**
+     * Drops the buffers of the current thread, e.g. before it ends or returns to a pool that rarely renders
+     */
+    public static void releaseThread() {
+        POOL.remove();
+    }
+
+    static int pooledCount() {
+        return POOL.get().freeCount;
+    }
+
+    private static final class Pool {
+        private final StringBuilder[] free = new StringBuilder[MAX_POOLED];
+        private int freeCount;
+        private final List<StringBuilder> acquired = new ArrayList<>();
+
+        private void offer(StringBuilder buffer) {
+            if (freeCount == MAX_POOLED) {
+                return;
+            }
+            for (int i = 0; i < freeCount; i++) {
+                if (free[i] == buffer) {
+                    return;
+                }
+            }
+            int maxCapacity = BBTemplates.getMaxRetainedBufferCapacity();
+            if (buffer.capacity() > maxCapacity) {
+                //larger pages are left to the garbage collector instead of being kept around for the life of the thread
+                if (buffer.length() > maxCapacity) {
+                    return;
+                }
+                //growing doubles the capacity, which may overshoot the cap for a page that fits it
+                buffer.trimToSize();
+            }
+            buffer.setLength(0);
+            free[freeCount++] = buffer;
+        }
+    }
+}
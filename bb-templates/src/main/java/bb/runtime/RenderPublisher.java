@@ -0,0 +1,225 @@
+package bb.runtime;
+
+import bb.BBTemplates;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Publishes a render as chunks of UTF-8 bytes, no faster than its subscriber requests them. The template is
+ * rendered on the given executor once the first chunk is requested, and whenever a chunk of the flush threshold is
+ * full while nothing is requested, the render waits for the subscriber. A slow subscriber thus holds back the render
+ * instead of letting its output pile up in memory.
+ *
+ * The subscriber gets its signals one at a time, in the order of the Reactive Streams rules, all but onSubscribe on
+ * the rendering thread. A publisher renders once, for a single subscriber. On Java 21, RenderFlow adapts it to a
+ * java.util.concurrent.Flow.Publisher:
+ *
+ * new RenderPublisher(out -> Report.renderInto(out, query), executor).subscribe(subscriber);
+ */
+public final class RenderPublisher {
+    //given to the subscribers turned away, it ignores their requests
+    private static final Subscription REFUSED = new Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private final Consumer<Appendable> _template;
+    private final Executor _executor;
+    private boolean _subscribed;
+
+    public RenderPublisher(Consumer<Appendable> template, Executor executor) {
+        _template = template;
+        _executor = executor;
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        boolean subscribed;
+        synchronized (this) {
+            subscribed = _subscribed;
+            _subscribed = true;
+        }
+        if (subscribed) {
+            subscriber.onSubscribe(REFUSED);
+            subscriber.onError(new IllegalStateException("A RenderPublisher renders for a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Render(subscriber));
+    }
+
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(ByteBuffer chunk);
+
+        void onError(Throwable failure);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+
+    private final class Render implements Subscription, Runnable {
+        private final Subscriber _subscriber;
+        //a lock rather than a monitor, so that waiting for demand doesn't pin a virtual thread to its carrier
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final Condition _requested = _lock.newCondition();
+        private long _demand;
+        private boolean _started;
+        private boolean _cancelled;
+        private Throwable _invalidRequest;
+
+        Render(Subscriber subscriber) {
+            _subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            boolean start;
+            _lock.lock();
+            try {
+                if (_cancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    //the render is cancelled, and the subscriber told why instead of getting any more output
+                    _invalidRequest = new IllegalArgumentException("Requested " + n + " chunks, must be positive");
+                    _cancelled = true;
+                } else {
+                    _demand = _demand + n < 0 ? Long.MAX_VALUE : _demand + n;
+                }
+                start = !_started;
+                _started = true;
+                _requested.signal();
+            } finally {
+                _lock.unlock();
+            }
+            if (start) {
+                _executor.execute(this);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            _lock.lock();
+            try {
+                _cancelled = true;
+                _requested.signal();
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            Throwable failure = null;
+            try {
+                if (isCancelled()) {
+                    throw Cancelled.INSTANCE;
+                }
+                ChunkSink sink = new ChunkSink(this, BBTemplates.getFlushThreshold());
+                sink.setEarlyFlush(true);
+                DeferredIncludes.stream(sink, _template);
+                sink.flush();
+            } catch (Throwable t) {
+                //also how a cancelled render is unwound, possibly wrapped by a template mapping it to its line
+                failure = t;
+            }
+            Throwable invalidRequest;
+            _lock.lock();
+            try {
+                invalidRequest = _invalidRequest;
+            } finally {
+                _lock.unlock();
+            }
+            if (invalidRequest != null) {
+                _subscriber.onError(invalidRequest);
+            } else if (isCancelled()) {
+                return;
+            } else if (failure != null) {
+                _subscriber.onError(failure);
+            } else {
+                _subscriber.onComplete();
+            }
+        }
+
+        void emit(ByteBuffer chunk) throws IOException {
+            _lock.lock();
+            try {
+                while (_demand == 0 && !_cancelled) {
+                    _requested.await();
+                }
+                if (_cancelled) {
+                    throw Cancelled.INSTANCE;
+                }
+                _demand--;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the subscriber to request output");
+            } finally {
+                _lock.unlock();
+            }
+            try {
+                _subscriber.onNext(chunk);
+            } catch (Throwable t) {
+                //a subscriber that fails in onNext gets no more signals
+                cancel();
+                throw t;
+            }
+        }
+
+        private boolean isCancelled() {
+            _lock.lock();
+            try {
+                return _cancelled;
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    private static final class ChunkSink extends ByteSink {
+        private final Render _render;
+
+        ChunkSink(Render render, int capacity) {
+            super(capacity);
+            _render = render;
+        }
+
+        @Override
+        protected void writeThrough(byte[] bytes, int offset, int length) throws IOException {
+            //every chunk is a copy, as the subscriber may hold on to it while the render goes on
+            for (int end = offset + length; offset < end; offset += _buffer.length) {
+                int chunkEnd = Math.min(end, offset + _buffer.length);
+                _render.emit(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, chunkEnd)));
+            }
+        }
+    }
+
+    //unwinds a render whose subscription was cancelled
+    private static final class Cancelled extends RuntimeException {
+        static final Cancelled INSTANCE = new Cancelled();
+
+        private Cancelled() {
+            super("The subscription was cancelled", null, false, false);
+        }
+    }
+}
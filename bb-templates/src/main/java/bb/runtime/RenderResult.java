@@ -0,0 +1,95 @@
+package bb.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * The output of renderResult(), a read only view of the buffer a template was rendered into. Writing it out with
+ * {@link #writeTo(Writer)} or {@link #writeTo(OutputStream)} avoids the copy that render() makes of the buffer.
+ *
+ * Once written out, a result should be {@link #release() released}, which gives its buffer back for later renders
+ * and makes the result unusable. A result that is never released is simply garbage collected.
+ */
+public final class RenderResult implements CharSequence {
+    private static final int CHUNK_SIZE = 8192;
+
+    private CharSequence _content;
+    //the pooled buffer behind the content, or null
+    private StringBuilder _buffer;
+
+    private RenderResult(CharSequence content, StringBuilder buffer) {
+        _content = content;
+        _buffer = buffer;
+    }
+
+    public static RenderResult of(CharSequence content) {
+        return new RenderResult(content, null);
+    }
+
+    static RenderResult ofBuffer(StringBuilder buffer) {
+        RenderBuffers.detach(buffer);
+        return new RenderResult(buffer, buffer);
+    }
+
+    @Override
+    public int length() {
+        return content().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return content().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return content().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return content().toString();
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        CharSequence content = content();
+        if (content instanceof String) {
+            out.write((String) content);
+        } else if (content instanceof StringBuilder) {
+            StringBuilder buffer = (StringBuilder) content;
+            char[] chunk = new char[Math.min(buffer.length(), CHUNK_SIZE)];
+            for (int start = 0; start < buffer.length(); start += chunk.length) {
+                int end = Math.min(start + chunk.length, buffer.length());
+                buffer.getChars(start, end, chunk, 0);
+                out.write(chunk, 0, end - start);
+            }
+        } else {
+            out.append(content);
+        }
+    }
+
+    /**
+     * Writes the result to a stream as UTF-8
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        OutputStreamSink sink = new OutputStreamSink(out);
+        sink.append(content());
+        sink.flush();
+    }
+
+    public void release() {
+        if (_buffer != null) {
+            RenderBuffers.release(_buffer);
+            _buffer = null;
+        }
+        _content = null;
+    }
+
+    private CharSequence content() {
+        if (_content == null) {
+            throw new IllegalStateException("The render result was already released");
+        }
+        return _content;
+    }
+}
@@ -0,0 +1,333 @@
+package bb.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ByteSink that keeps the rendered output in memory as a chain of segments. Encoded content is appended straight
+ * into heap segments taken from a {@link Pool}, or staged and copied once into direct ones, while large static texts
+ * are referenced as segments of their own without copying them. The chain can be handed to a GatheringByteChannel
+ * in a single vectored write.
+ *
+ * A SegmentSink is not thread safe. Its pooled segments are returned by {@link #release()}, after which the sink
+ * can be reused.
+ */
+public class SegmentSink extends ByteSink {
+    public static final int DEFAULT_SEGMENT_SIZE = 16384;
+    //static texts at least this long are referenced instead of copied
+    public static final int REFERENCE_THRESHOLD = 1024;
+    private static final byte[] NO_TAIL = new byte[0];
+
+    private final Pool _pool;
+    //direct segments can't be encoded into, so content is staged in _buffer and copied into them
+    private final boolean _direct;
+    private final List<Segment> _segments = new ArrayList<>();
+    private final List<ByteBuffer> _owned = new ArrayList<>();
+    //the segment being written, which is _buffer unless it is direct
+    private ByteBuffer _tail;
+    private int _tailStart;
+    //the bytes in _segments, and those copied into a direct tail
+    private long _size;
+
+    public SegmentSink() {
+        this(null);
+    }
+
+    /**
+     * @param pool the pool to take segments from, or null to allocate heap segments as needed
+     */
+    public SegmentSink(Pool pool) {
+        super(pool != null && pool._direct ? new byte[pool._segmentSize] : NO_TAIL);
+        _pool = pool;
+        _direct = pool != null && pool._direct;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (_direct) {
+            super.write(bytes, offset, length);
+        } else {
+            finishPendingSurrogate();
+            writeThrough(bytes, offset, length);
+        }
+    }
+
+    @Override
+    protected void writeThrough(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            int chunk;
+            if (_direct) {
+                if (_tail == null || !_tail.hasRemaining()) {
+                    newTail();
+                }
+                chunk = Math.min(length, _tail.remaining());
+                _tail.put(bytes, offset, chunk);
+                _size += chunk;
+            } else {
+                if (_count == _buffer.length) {
+                    newTail();
+                }
+                chunk = Math.min(length, _buffer.length - _count);
+                System.arraycopy(bytes, offset, _buffer, _count, chunk);
+                _count += chunk;
+            }
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    protected void flushBuffer() throws IOException {
+        if (_direct) {
+            super.flushBuffer();
+        } else {
+            //only called for room, which a fresh heap tail has
+            newTail();
+        }
+    }
+
+    /**
+     * Closes the segment written so far, without starting a new one, as the output stays in memory
+     */
+    @Override
+    public void flush() throws IOException {
+        finishPendingSurrogate();
+        if (_direct) {
+            super.flushBuffer();
+        }
+        closeTail();
+    }
+
+    @Override
+    public void writeSegment(byte[] bytes) throws IOException {
+        if (bytes.length < REFERENCE_THRESHOLD) {
+            write(bytes, 0, bytes.length);
+        } else {
+            flush();
+            _segments.add(new Segment(bytes, 0, bytes.length));
+            _size += bytes.length;
+        }
+    }
+
+    /**
+     * Appends a segment that is never modified afterwards, without copying it
+     */
+    public void writeSegment(ByteBuffer segment) throws IOException {
+        flush();
+        if (segment.hasArray()) {
+            _segments.add(new Segment(segment.array(), segment.arrayOffset() + segment.position(), segment.remaining()));
+        } else {
+            _segments.add(new Segment(segment.slice()));
+        }
+        _size += segment.remaining();
+    }
+
+    /**
+     * The number of bytes written so far
+     */
+    public long size() {
+        return _direct ? _size + _count : _size + _count - _tailStart;
+    }
+
+    /**
+     * The written bytes as read only buffers, ready to be read. Writing may go on afterwards.
+     */
+    public List<ByteBuffer> segments() throws IOException {
+        flush();
+        List<ByteBuffer> segments = new ArrayList<>(_segments.size());
+        for (Segment segment : _segments) {
+            segments.add(segment.view());
+        }
+        return Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * Writes all segments to a blocking channel with as few vectored writes as the channel allows
+     *
+     * @return the number of bytes written
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] buffers = segments().toArray(new ByteBuffer[0]);
+        long written = 0;
+        int first = 0;
+        while (first < buffers.length) {
+            written += channel.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+        return written;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        flush();
+        byte[] chunk = null;
+        for (Segment segment : _segments) {
+            if (segment.array != null) {
+                out.write(segment.array, segment.offset, segment.length);
+                continue;
+            }
+            ByteBuffer source = segment.buffer.duplicate();
+            if (chunk == null) {
+                chunk = new byte[Math.min(source.remaining(), DEFAULT_SEGMENT_SIZE)];
+            }
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+
+    public byte[] toByteArray() throws IOException {
+        flush();
+        byte[] bytes = new byte[(int) _size];
+        int pos = 0;
+        for (Segment segment : _segments) {
+            if (segment.array != null) {
+                System.arraycopy(segment.array, segment.offset, bytes, pos, segment.length);
+            } else {
+                segment.buffer.duplicate().get(bytes, pos, segment.length);
+            }
+            pos += segment.length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return new String(toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Discards the written bytes and returns the segments of this sink to its pool
+     */
+    public void release() {
+        if (_pool != null) {
+            for (ByteBuffer segment : _owned) {
+                _pool.release(segment);
+            }
+        }
+        _owned.clear();
+        _segments.clear();
+        _tail = null;
+        _tailStart = 0;
+        _size = 0;
+        _count = 0;
+        if (!_direct) {
+            _buffer = NO_TAIL;
+        }
+    }
+
+    private void newTail() {
+        closeTail();
+        _tail = _pool == null ? ByteBuffer.allocate(DEFAULT_SEGMENT_SIZE) : _pool.acquire();
+        _tailStart = 0;
+        _owned.add(_tail);
+        if (!_direct) {
+            //heap segments are allocated whole, so their array starts at offset 0
+            _buffer = _tail.array();
+            _count = 0;
+        }
+    }
+
+    //adds the bytes written to the tail since it was last closed as a segment, the tail stays writable
+    private void closeTail() {
+        if (_direct) {
+            if (_tail != null && _tail.position() > _tailStart) {
+                ByteBuffer segment = _tail.duplicate();
+                segment.limit(_tail.position());
+                segment.position(_tailStart);
+                _segments.add(new Segment(segment.slice()));
+                _tailStart = _tail.position();
+            }
+        } else if (_count > _tailStart) {
+            _segments.add(new Segment(_buffer, _tailStart, _count - _tailStart));
+            _size += _count - _tailStart;
+            _tailStart = _count;
+        }
+    }
+
+    //a range of an array or a direct buffer, neither of which is ever handed out other than through a read only view
+    private static final class Segment {
+        final byte[] array;
+        final int offset;
+        final int length;
+        final ByteBuffer buffer;
+
+        Segment(byte[] array, int offset, int length) {
+            this.array = array;
+            this.offset = offset;
+            this.length = length;
+            this.buffer = null;
+        }
+
+        Segment(ByteBuffer buffer) {
+            this.array = null;
+            this.offset = 0;
+            this.length = buffer.remaining();
+            this.buffer = buffer;
+        }
+
+        ByteBuffer view() {
+            return array != null ? ByteBuffer.wrap(array, offset, length).slice().asReadOnlyBuffer() : buffer.asReadOnlyBuffer();
+        }
+    }
+    /**
+     * A bounded, thread safe pool of equally sized segments, which may be direct buffers
+     */
+    public static class Pool {
+        private final int _segmentSize;
+        private final boolean _direct;
+        private final int _maxPooled;
+        private final Queue<ByteBuffer> _free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger _freeCount = new AtomicInteger();
+
+        public Pool(int segmentSize, boolean direct, int maxPooled) {
+            if (segmentSize < 32) {
+                throw new IllegalArgumentException("Segments of " + segmentSize + " bytes are too small to encode into");
+            }
+            _segmentSize = segmentSize;
+            _direct = direct;
+            _maxPooled = maxPooled;
+        }
+
+        public ByteBuffer acquire() {
+            ByteBuffer segment = _free.poll();
+            if (segment == null) {
+                return _direct ? ByteBuffer.allocateDirect(_segmentSize) : ByteBuffer.allocate(_segmentSize);
+            }
+            _freeCount.decrementAndGet();
+            segment.clear();
+            return segment;
+        }
+
+        public void release(ByteBuffer segment) {
+            if (segment.capacity() != _segmentSize || segment.isDirect() != _direct) {
+                return;
+            }
+            if (_freeCount.incrementAndGet() <= _maxPooled) {
+                _free.offer(segment);
+            } else {
+                _freeCount.decrementAndGet();
+            }
+        }
+
+        public int getPooledCount() {
+            return _freeCount.get();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package bb.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The text of a template file, which templates generated with static text resources render their long static texts
+ * from instead of from string constants. The file is loaded from the classpath once per template class, memory
+ * mapped if it is a plain file, and its slices are written to byte sinks without decoding them, or even without
+ * copying them in the case of a {@link SegmentSink}.
+ */
+public final class StaticText {
+    private static final ClassValue<Map<String, StaticText>> LOADED = new ClassValue<Map<String, StaticText>>() {
+        @Override
+        protected Map<String, StaticText> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final ByteBuffer _bytes;
+
+    private StaticText(ByteBuffer bytes) {
+        _bytes = bytes;
+    }
+
+    /**
+     * Loads a template file next to the given template class
+     *
+     * @param length the length of the file the template was generated from, in bytes
+     */
+    public static StaticText load(Class<?> template, String resource, int length) {
+        return LOADED.get(template).computeIfAbsent(resource, name -> read(template, name, length));
+    }
+
+    public Slice slice(int offset, int length) {
+        ByteBuffer bytes = _bytes.duplicate();
+        bytes.position(offset);
+        bytes.limit(offset + length);
+        return new Slice(bytes.slice().asReadOnlyBuffer());
+    }
+
+    private static StaticText read(Class<?> template, String resource, int length) {
+        URL url = template.getResource(resource);
+        if (url == null) {
+            throw new IllegalStateException(template.getName() + " renders its static text from " + resource +
+                    ", which isn't on the classpath");
+        }
+        ByteBuffer bytes;
+        try {
+            if ("file".equals(url.getProtocol())) {
+                try (FileChannel channel = FileChannel.open(Paths.get(url.toURI()), StandardOpenOption.READ)) {
+                    bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            } else {
+                try (InputStream in = url.openStream()) {
+                    ByteArrayOutputStream content = new ByteArrayOutputStream(length);
+                    byte[] chunk = new byte[8192];
+                    for (int read = in.read(chunk); read >= 0; read = in.read(chunk)) {
+                        content.write(chunk, 0, read);
+                    }
+                    bytes = ByteBuffer.wrap(content.toByteArray());
+                }
+            }
+        } catch (IOException | URISyntaxException e) {
+            throw new IllegalStateException("Unable to read " + resource + " for " + template.getName(), e);
+        }
+        if (bytes.remaining() != length) {
+            throw new IllegalStateException(resource + " has changed since " + template.getName() +
+                    " was generated from it, the template has to be regenerated");
+        }
+        return new StaticText(bytes.asReadOnlyBuffer());
+    }
+
+    /**
+     * A part of a template file, in UTF-8
+     */
+    public static final class Slice {
+        private final ByteBuffer _bytes;
+        //the decoded text for buffers of characters, which can be dropped again when memory gets short
+        private SoftReference<String> _text = new SoftReference<>(null);
+
+        private Slice(ByteBuffer bytes) {
+            _bytes = bytes;
+        }
+
+        public ByteBuffer bytes() {
+            return _bytes.duplicate();
+        }
+
+        public void appendTo(Appendable buffer) throws IOException {
+            if (buffer instanceof SegmentSink) {
+                ((SegmentSink) buffer).writeSegment(_bytes);
+            } else if (buffer instanceof ByteSink) {
+                ((ByteSink) buffer).write(_bytes);
+            } else {
+                buffer.append(toString());
+            }
+        }
+
+        @Override
+        public String toString() {
+            String text = _text.get();
+            if (text == null) {
+                text = StandardCharsets.UTF_8.decode(_bytes.duplicate()).toString();
+                _text = new SoftReference<>(text);
+            }
+            return text;
+        }
+    }
+}
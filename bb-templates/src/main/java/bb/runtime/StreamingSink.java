@@ -0,0 +1,20 @@
+package bb.runtime;
+
+import java.io.Flushable;
+
+/**
+ * An Appendable that streams rendered output to its destination. In early flush mode it sends the header of the
+ * outermost layout on its own, as soon as it is rendered, so that a client can start fetching what the header
+ * refers to while the rest of the page is still being computed. Only static headers are sent early; pages without
+ * one keep their response uncommitted until the flush threshold is reached.
+ */
+public interface StreamingSink extends Appendable, Flushable {
+
+    void setEarlyFlush(boolean earlyFlush);
+
+    /**
+     * Whether the header about to be rendered should be flushed on its own. Only the first caller gets true, which
+     * is the outermost template, as nested layouts render their headers within its header.
+     */
+    boolean takeEarlyFlush();
+}
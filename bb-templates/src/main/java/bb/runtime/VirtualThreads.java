@@ -0,0 +1,30 @@
+package bb.runtime;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Starts renders on virtual threads, so that blocking calls made by templates don't hold a platform thread. This is
+ * the version loaded by JDKs before 21, which have no virtual threads; the multi-release jar carries the one under
+ * bb-templates-java21 for JDK 21 and later.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return false;
+    }
+
+    //true if the thread is virtual, which makes thread local caches pointless
+    static boolean isVirtual(Thread thread) {
+        return false;
+    }
+
+    /**
+     * An executor starting a new virtual thread for each task, or the given one, which may be null, before Java 21
+     */
+    public static Executor executorOr(Executor fallback) {
+        return fallback;
+    }
+}
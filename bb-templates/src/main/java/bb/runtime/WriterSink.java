@@ -0,0 +1,117 @@
+package bb.runtime;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * An Appendable that writes to a Writer through a fixed size buffer, so that rendering into it needs the same
+ * memory no matter how large the output gets
+ */
+public class WriterSink implements StreamingSink {
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final Writer _out;
+    private final char[] _buffer;
+    private final boolean _flushChunks;
+    private int _count;
+    private boolean _earlyFlush;
+
+    public WriterSink(Writer out) {
+        this(out, DEFAULT_CAPACITY, false);
+    }
+
+    /**
+     * @param flushChunks whether the writer is flushed whenever a full buffer was written to it
+     */
+    public WriterSink(Writer out, int capacity, boolean flushChunks) {
+        _out = out;
+        _buffer = new char[Math.max(capacity, 32)];
+        _flushChunks = flushChunks;
+    }
+
+    @Override
+    public WriterSink append(CharSequence csq) throws IOException {
+        if (csq == null) {
+            csq = "null";
+        }
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public WriterSink append(CharSequence csq, int start, int end) throws IOException {
+        if (csq == null) {
+            csq = "null";
+        }
+        int length = end - start;
+        if (length >= _buffer.length && csq instanceof String) {
+            flushBuffer();
+            writeThrough((String) csq, start, length);
+            return this;
+        }
+        while (start < end) {
+            if (_count == _buffer.length) {
+                flushBuffer();
+            }
+            int chunk = Math.min(end - start, _buffer.length - _count);
+            if (csq instanceof String) {
+                ((String) csq).getChars(start, start + chunk, _buffer, _count);
+            } else {
+                for (int i = 0; i < chunk; i++) {
+                    _buffer[_count + i] = csq.charAt(start + i);
+                }
+            }
+            _count += chunk;
+            start += chunk;
+        }
+        return this;
+    }
+
+    @Override
+    public WriterSink append(char c) throws IOException {
+        if (_count == _buffer.length) {
+            flushBuffer();
+        }
+        _buffer[_count++] = c;
+        return this;
+    }
+
+    @Override
+    public void setEarlyFlush(boolean earlyFlush) {
+        _earlyFlush = earlyFlush;
+    }
+
+    @Override
+    public boolean takeEarlyFlush() {
+        boolean earlyFlush = _earlyFlush;
+        _earlyFlush = false;
+        return earlyFlush;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (_count > 0) {
+            int count = _count;
+            _count = 0;
+            _out.write(_buffer, 0, count);
+        }
+        _out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (_count > 0) {
+            int count = _count;
+            _count = 0;
+            _out.write(_buffer, 0, count);
+            if (_flushChunks) {
+                _out.flush();
+            }
+        }
+    }
+
+    private void writeThrough(String text, int offset, int length) throws IOException {
+        _out.write(text, offset, length);
+        if (_flushChunks) {
+            _out.flush();
+        }
+    }
+}
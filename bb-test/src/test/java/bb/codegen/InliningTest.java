@@ -0,0 +1,105 @@
+package bb.codegen;
+
+import bb.BBTemplates;
+import bb.runtime.ILayout;
+import codegen.*;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InliningTest {
+
+    @After
+    public void resetLayouts() {
+        BBTemplates.resetDefaultTemplates();
+    }
+
+    @Test
+    public void sectionsWithoutStatementsAreSpliced() {
+        String generated = new BBTemplateGen(BBTemplateGen.Mode.PRODUCTION).generateCode("codegen.Inlined", TemplateCompiler.source("codegen.Inlined"), "Inlined.txt.bb");
+        String renderImpl = renderImpl(generated);
+        assertFalse(renderImpl.contains("greeting.renderInto(buffer, name, age)"));
+        assertTrue(renderImpl.contains("Inlined.greeting.renderInto(buffer, other, age)"));
+        assertTrue(renderImpl.contains("counted.renderInto(buffer, name)"));
+
+        //development templates keep every section a call of its own, for its tracer events and lines
+        generated = new BBTemplateGen().generateCode("codegen.Inlined", TemplateCompiler.source("codegen.Inlined"), "Inlined.txt.bb");
+        renderImpl = renderImpl(generated);
+        assertTrue(renderImpl.contains("greeting.renderInto(buffer, name, age)"));
+
+        assertEquals("<p>Carson is 9001</p>\n6\n<p>Carson is 9001</p>|<p>Ann is 9001</p>", Inlined.render());
+    }
+
+    @Test
+    public void sectionsAreOnlySplicedWherePassedVariablesOfTheirParameterTypes() {
+        String generated = new BBTemplateGen(BBTemplateGen.Mode.PRODUCTION).generateCode("codegen.TypedSplices",
+                TemplateCompiler.source("codegen.TypedSplices"), "TypedSplices.txt.bb");
+        String renderImpl = renderImpl(generated);
+        assertTrue(renderImpl.contains("greeting.renderInto(buffer, name, age)"));
+        assertTrue(renderImpl.contains("named.renderInto(buffer, name)"));
+
+        assertEquals("<p>Carson is 9001</p><p>Carson</p>|<p>Carson is 9001</p>|<p>Carson</p>", TypedSplices.render());
+    }
+
+    @Test
+    public void sectionsMapToTheirOwnLines() {
+        //development mode only, as production templates don't remap exceptions
+        String source = "<% String s = null; %>\n<%@ section broken(String s) %>\n${s.length()}\n<%@ end section %>";
+        Class<?> template = TemplateCompiler.compile(new BBTemplateGen(), "inlining.Broken", source, "Broken.bb.txt");
+        try {
+            TemplateCompiler.render(template);
+            fail();
+        } catch (RuntimeException e) {
+            StackTraceElement element = e.getCause().getStackTrace()[0];
+            assertEquals("Broken.bb.txt", element.getFileName());
+            assertEquals(3, element.getLineNumber());
+        }
+    }
+
+    private static String renderImpl(String generated) {
+        int start = generated.indexOf("public void renderImpl");
+        return generated.substring(start, generated.indexOf(" class ", start));
+    }
+
+    @Test
+    public void staticTemplatesAreInlinedInProduction() throws Exception {
+        Map<String, String> sources = new LinkedHashMap<>();
+        for (String name : new String[]{"codegen.Icon", "codegen.Dynamic", "codegen.IconPage"}) {
+            sources.put(name, TemplateCompiler.source(name));
+        }
+
+        BBTemplateGen generator = new BBTemplateGen(BBTemplateGen.Mode.PRODUCTION);
+        generator.setTemplateSources(sources::get);
+        String generated = generator.generateCode("codegen.IconPage", sources.get("codegen.IconPage"), "IconPage.txt.bb");
+        assertTrue(generated.contains("<i class=\\\"icon\\\">*</i>"));
+        assertTrue(generated.contains("codegen.Dynamic.renderInto(buffer);"));
+
+        assertEquals("<p><i class=\"icon\">*</i><i>2</i></p>", IconPage.render());
+
+        //an inlined template still gets its default layout
+        BBTemplates.setDefaultTemplate("codegen", new ILayout() {
+            public void header(Appendable buffer) throws java.io.IOException {
+                buffer.append("[");
+            }
+
+            public void footer(Appendable buffer) throws java.io.IOException {
+                buffer.append("]");
+            }
+        });
+        assertEquals("[<p>[<i class=\"icon\">*</i>][<i>2</i>]</p>]", IconPage.render());
+    }
+
+    @Test
+    public void developmentTemplatesDoNotInlineOtherFiles() {
+        BBTemplateGen generator = new BBTemplateGen();
+        generator.setTemplateSources(name -> "static");
+        assertTrue(generator.generateCode("inlining.Page", "<%@ include Icon %>", "Page.bb.txt").contains("Icon.renderInto(buffer);"));
+    }
+}
@@ -0,0 +1,87 @@
+package bb.codegen;
+
+import bb.runtime.BBRuntimeException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MethodSplittingTest {
+
+    @Test
+    public void largeBodiesAreSplitWithTheirLocals() {
+        StringBuilder source = new StringBuilder("<%@ params(String name) %>");
+        StringBuilder expected = new StringBuilder();
+        source.append("<% java.util.List<String> names = new java.util.ArrayList<>(); int total = 0, unused = 0; %>\n");
+        expected.append("\n");
+        for (int i = 0; i < 400; i++) {
+            source.append("<% int x").append(i).append(" = ").append(i).append("; total += x").append(i).append("; %>");
+            source.append("<p>${name} ${x").append(i).append(" + total}</p>\n");
+            source.append("<% for (int j = 0; j < 2; j++) { %>${j}<% } %>\n");
+            source.append("<% if (x").append(i).append(" % 2 == 0) { names.add(\"a\"); } else { names.add(\"b\"); } %>\n");
+        }
+        source.append("${total} ${names.size()}");
+        int total = 0;
+        for (int i = 0; i < 400; i++) {
+            total += i;
+            expected.append("<p>bb ").append(i + total).append("</p>\n01\n\n");
+        }
+        expected.append(total).append(" 400");
+
+        for (BBTemplateGen.Mode mode : BBTemplateGen.Mode.values()) {
+            String generated = new BBTemplateGen(mode).generateCode("splitting.Large" + mode, source.toString(), "Large.bb.txt");
+            assertTrue(generated.contains("private void renderImpl$1(Appendable buffer, ILayout overrideLayout, String name, java.util.List<String> names, int total"));
+            assertFalse(generated.contains("int unused,"));
+            Class<?> template = TemplateCompiler.compile(new BBTemplateGen(mode), "splitting.Large" + mode, source.toString(), "Large.bb.txt");
+            assertEquals(expected.toString(), TemplateCompiler.render(template, "bb"));
+        }
+    }
+
+    @Test
+    public void loopDirectivesAreNotSplit() {
+        StringBuilder source = new StringBuilder("<%@ params(java.util.List<Integer> numbers) %>");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 150; i++) {
+            source.append("<%@ for Integer n : numbers %>${n * ").append(i).append("}${nLast ? \"\" : \",\"}<%@ end for %>\n");
+            expected.append(0).append(",").append(i).append(",").append(2 * i).append("\n");
+        }
+        String generated = new BBTemplateGen().generateCode("splitting.Loops", source.toString(), "Loops.bb.txt");
+        assertTrue(generated.contains("renderImpl$1"));
+        Class<?> template = TemplateCompiler.compile(new BBTemplateGen(), "splitting.Loops", source.toString(), "Loops.bb.txt");
+        assertEquals(expected.toString(), TemplateCompiler.render(template, java.util.Arrays.asList(0, 1, 2)));
+    }
+
+    @Test
+    public void bodiesAreNotSplitAfterUninitializedLocals() {
+        StringBuilder source = new StringBuilder("<% String later; %>");
+        for (int i = 0; i < 2000; i++) {
+            source.append("${").append(i).append(" * 2}");
+        }
+        source.append("<% later = \"done\"; %>${later}");
+        String generated = new BBTemplateGen().generateCode("splitting.Uninitialized", source.toString(), "Uninitialized.bb.txt");
+        assertFalse(generated.contains("renderImpl$1"));
+        TemplateCompiler.compile(new BBTemplateGen(), "splitting.Uninitialized", source.toString(), "Uninitialized.bb.txt");
+    }
+
+    @Test
+    public void exceptionsInContinuedMethodsMapToTemplateLines() {
+        StringBuilder source = new StringBuilder("<% String missing = null; %>\n");
+        for (int i = 0; i < 1000; i++) {
+            source.append("${").append(i).append(" * 2}\n");
+        }
+        source.append("${missing.length()}\n");
+        Class<?> template = TemplateCompiler.compile(new BBTemplateGen(), "splitting.Error", source.toString(), "Error.bb.txt");
+        try {
+            TemplateCompiler.render(template);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof BBRuntimeException);
+            StackTraceElement element = e.getCause().getStackTrace()[0];
+            assertEquals("Error.bb.txt", element.getFileName());
+            assertEquals(1002, element.getLineNumber());
+            assertEquals("renderInto", element.getMethodName());
+        }
+    }
+}
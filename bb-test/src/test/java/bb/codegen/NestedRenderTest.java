@@ -0,0 +1,67 @@
+package bb.codegen;
+
+import codegen.*;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NestedRenderTest {
+    @Test
+    public void renderCallsAreRecognized() {
+        assertArrayEquals(new String[]{"Index.card", "title, f(3)"}, BBTemplateGen.parseRenderCall(" Index . card.render(title, f(3)) "));
+        assertArrayEquals(new String[]{"Index", ""}, BBTemplateGen.parseRenderCall("Index.render()"));
+        assertArrayEquals(new String[]{"card", "\")\""}, BBTemplateGen.parseRenderCall("card.render(\")\")"));
+        assertNull(BBTemplateGen.parseRenderCall("card.render(\"x\").length()"));
+        assertNull(BBTemplateGen.parseRenderCall("card.render(a) + card.render(b)"));
+        assertNull(BBTemplateGen.parseRenderCall("render()"));
+    }
+
+    @Test
+    public void sectionsRenderIntoTheBuffer() {
+        String generated = new BBTemplateGen().generateCode("codegen.Nested", TemplateCompiler.source("codegen.Nested"), "Nested.txt.bb");
+        assertTrue(generated.contains("card.renderInto(buffer, \"a\");"));
+        assertTrue(generated.contains("Nested.card.renderInto(buffer, \"b\" + \"c\");"));
+        assertTrue(generated.contains("toS(buffer, card.render(\"x\").length());"));
+        assertTrue(generated.contains("card.renderInto(buffer, String.valueOf(Math.max(1, 2)));"));
+
+        assertEquals("[d1]|[a1]|[bc2]|4|[21]", Nested.render());
+    }
+
+    @Test
+    public void otherTemplatesRenderIntoTheBuffer() {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("codegen.Item", TemplateCompiler.source("codegen.Item"));
+        sources.put("codegen.ItemList", TemplateCompiler.source("codegen.ItemList"));
+
+        BBTemplateGen generator = new BBTemplateGen();
+        generator.setTemplateSources(sources::get);
+        String generated = generator.generateCode("codegen.ItemList", sources.get("codegen.ItemList"), "ItemList.txt.bb");
+        assertTrue(generated.contains("Item.renderInto(buffer, 2);"));
+        assertTrue(generated.contains("codegen.Item.renderInto(buffer, 3);"));
+        assertTrue(generated.contains("Item.label.renderInto(buffer, \"x\");"));
+
+        //without a source for Item it might be anything with a render method
+        String unknown = new BBTemplateGen().generateCode("codegen.ItemList", sources.get("codegen.ItemList"), "ItemList.txt.bb");
+        assertFalse(unknown.contains("renderInto(buffer, 2)"));
+        assertTrue(unknown.contains("toS(buffer, Item.render(2));"));
+
+        assertTrue(ItemList.render().startsWith("<ul><li>2</li>"));
+        assertTrue(ItemList.render().endsWith("<b>x</b></ul>"));
+    }
+
+    @Test
+    public void superclassesStillRenderTheOutputOfOtherTemplates() {
+        String generated = new BBTemplateGen().generateCode("codegen.EscapedNested", TemplateCompiler.source("codegen.EscapedNested"), "EscapedNested.txt.bb");
+        assertFalse(generated.contains("renderInto(buffer"));
+
+        //escaped by toS(Object) and quoted by the toS(String) overload, like any other String
+        assertEquals("'&lt;i>2&lt;/i>' 8", EscapedNested.render());
+    }
+}
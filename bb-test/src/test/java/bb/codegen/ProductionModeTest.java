@@ -0,0 +1,35 @@
+package bb.codegen;
+
+import org.junit.Test;
+
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProductionModeTest {
+
+    @Test
+    public void productionTemplatesRenderTheSameOutput() {
+        String source = "Hello <% String name = \"Carson\"; int age = 9001; %>${name}<%@ section greeting(String name, int age) %>(${name} is ${age})<%@ end section %>";
+        Class<?> development = TemplateCompiler.compile(new BBTemplateGen(), "dev.Greeting", source, "Greeting.bb.txt");
+        Class<?> production = TemplateCompiler.compile(new BBTemplateGen(BBTemplateGen.Mode.PRODUCTION), "prod.Greeting", source, "Greeting.bb.txt");
+
+        assertEquals("Hello Carson(Carson is 9001)", TemplateCompiler.render(development));
+        assertEquals(TemplateCompiler.render(development), TemplateCompiler.render(production));
+    }
+
+    @Test
+    public void productionTemplatesAreFinalAndUntraced() {
+        String source = "<%@ section inner %>Inner<%@ end section %>Outer";
+        String generated = new BBTemplateGen(BBTemplateGen.Mode.PRODUCTION).generateCode("prod.Lean", source, "Lean.bb.txt");
+        assertFalse(generated.contains("System.nanoTime()"));
+        assertFalse(generated.contains("handleException"));
+
+        Class<?> production = TemplateCompiler.compile(new BBTemplateGen(BBTemplateGen.Mode.PRODUCTION), "prod.Lean", source, "Lean.bb.txt");
+        assertTrue(Modifier.isFinal(production.getModifiers()));
+        assertTrue(Modifier.isFinal(production.getDeclaredClasses()[0].getModifiers()));
+        assertEquals("InnerOuter", TemplateCompiler.render(production));
+    }
+}
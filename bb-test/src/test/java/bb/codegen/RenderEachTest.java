@@ -0,0 +1,57 @@
+package bb.codegen;
+
+import bb.BBTemplates;
+import codegen.Rows;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RenderEachTest {
+    //single parameter sections that get no renderEachInto(), as nothing calls it or their parameter is primitive
+    private static final String WITHOUT_BATCHES = "<% int i = 1; %>" +
+            "<%@ section unused(String a) %>${a}<%@ end section %>" +
+            "<%@ section primitive(int i) %>${i}<%@ end section %>";
+
+    @After
+    public void tearDown() {
+        BBTemplates.traceWith((c, t) -> {});
+    }
+
+    @Test
+    public void singleParameterSectionsRenderEachItem() {
+        String source = TemplateCompiler.source("codegen.Rows") + WITHOUT_BATCHES;
+        String generated = new BBTemplateGen().generateCode("codegen.Rows", source, "Rows.txt.bb");
+        assertTrue(generated.contains("public static void renderEachInto(Appendable buffer, Iterable<? extends String> items)"));
+        assertTrue(generated.contains("public static void renderEachInto(Appendable buffer, Iterable<? extends Integer> items)"));
+        assertEquals(2, generated.split("renderEachInto\\(Appendable").length - 1);
+        generated = new BBTemplateGen(BBTemplateGen.Mode.DEVELOPMENT, true).generateCode("codegen.Rows", source, "Rows.txt.bb");
+        assertEquals(2, generated.split("renderEachInto\\(Appendable").length - 1);
+        assertEquals(2, generated.split("\\$\\$each\\(Appendable").length - 1);
+
+        assertEquals("<ul><li>a</li><li>b</li><li>c</li></ul>|[2][6]||<li>x</li>[0]yz",
+                Rows.render(Arrays.asList("a", "b", "c"), new LinkedHashSet<>(Arrays.asList(1, 3))));
+    }
+
+    @Test
+    public void theBatchIsTracedOnce() {
+        List<Class> traced = new ArrayList<>();
+        BBTemplates.traceWith((c, t) -> traced.add(c));
+        //compiled for development, as production templates aren't traced
+        Class<?> template = TemplateCompiler.compile(new BBTemplateGen(), "each.Traced", TemplateCompiler.source("codegen.Rows"), "Traced.bb.txt");
+        TemplateCompiler.render(template, Arrays.asList("a", "b", "c"), new LinkedHashSet<>(Arrays.asList(1, 2, 3)));
+
+        //one trace per renderEachInto call rather than per item and one per section rendered in place, then the
+        //outer template
+        assertEquals(7, traced.size());
+        assertEquals(template, traced.get(6));
+        assertFalse(traced.subList(0, 6).contains(template));
+    }
+}
@@ -0,0 +1,65 @@
+package bb.codegen;
+
+import codegen.Sections;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SectionMethodsTest {
+    @Test
+    public void sectionsRenderTheSameAsMethods() {
+        //the test templates are built both ways, by the development and the production build
+        assertEquals("<h1>Sections</h1>\n<p>Carson is 9001</p>\n<p>bye Ann x2</p>\n<hr/>\n<div><b>Carson</b></div>\n<p>Bob is 3</p><hr/>\n",
+                Sections.render());
+        assertEquals("<p>Bob is 3</p>", Sections.greeting.render("Bob", 3));
+        assertEquals("<p>bye Bob x3</p>", Sections.farewell.render("Bob", 3));
+        assertEquals("<p>Bob is 3</p><hr/>", Sections.usesOthers.render());
+    }
+
+    @Test
+    public void onlySectionsWithNestedSectionsRemainClasses() throws Exception {
+        String source = TemplateCompiler.source("codegen.Sections");
+        Class<?> classes = TemplateCompiler.compile(new BBTemplateGen(), "sections.Sections", source, "Sections.bb.txt");
+        Class<?> methods = TemplateCompiler.compile(new BBTemplateGen(BBTemplateGen.Mode.DEVELOPMENT, true), "sections.Sections", source, "Sections.bb.txt");
+        assertEquals(5, classes.getDeclaredClasses().length);
+        //the outer section, and one dispatcher each for (String, int) and () sections
+        assertEquals(3, methods.getDeclaredClasses().length);
+        //dispatchers stay small, with nothing but render and renderInto
+        for (java.lang.reflect.Method method : methods.getField("greeting").get(null).getClass().getDeclaredMethods()) {
+            assertTrue(method.getName(), method.getName().equals("render") || method.getName().equals("renderInto"));
+        }
+
+        Class<?> outer = methods.getClassLoader().loadClass("sections.Sections$outer");
+        Object inner = outer.getField("inner").get(null);
+        assertEquals("<b>x</b>", inner.getClass().getMethod("render", String.class).invoke(inner, "x"));
+    }
+
+    @Test
+    public void sectionMethodExceptionsMapToTemplateLines() throws Exception {
+        String source = "<% String s = null; %>\n<%@ section broken(String s) %>\n${s.length()}\n<%@ end section %>";
+        Class<?> template = TemplateCompiler.compile(new BBTemplateGen(BBTemplateGen.Mode.DEVELOPMENT, true), "sections.Broken", source, "Broken.bb.txt");
+        try {
+            renderSection(template, "broken", (Object) null);
+        } catch (InvocationTargetException e) {
+            StackTraceElement element = e.getCause().getStackTrace()[0];
+            assertEquals("Broken.bb.txt", element.getFileName());
+            assertEquals(3, element.getLineNumber());
+            return;
+        }
+        assertTrue("expected an exception", false);
+    }
+
+    private static String renderSection(Class<?> template, String section, Object... args) throws Exception {
+        Object dispatcher = template.getField(section).get(null);
+        for (java.lang.reflect.Method method : dispatcher.getClass().getMethods()) {
+            if (method.getName().equals("render") && method.getParameterCount() == args.length &&
+                    (args.length == 0 || !method.getParameterTypes()[0].getName().equals("bb.runtime.ILayout"))) {
+                return (String) method.invoke(dispatcher, args);
+            }
+        }
+        throw new IllegalArgumentException(section);
+    }
+}
@@ -0,0 +1,62 @@
+package bb.codegen;
+
+import bb.runtime.SegmentSink;
+import codegen.LongStaticText;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StaticTextResourcesTest {
+    private static String text() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("<p>caf\u00e9 ").append(i).append("</p>\n");
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void longStaticTextIsReadFromTheTemplate() throws Exception {
+        String page = TemplateCompiler.source("codegen.LongStaticText");
+        BBTemplateGen generator = new BBTemplateGen();
+        generator.setStaticTextResources(true);
+        String generated = generator.generateCode("codegen.LongStaticText", page, "LongStaticText.txt.bb");
+        assertTrue(generated.contains("StaticText.load(LongStaticText.class, \"LongStaticText.txt.bb\", "));
+        assertTrue(generated.contains("appendStatic(buffer, STATIC_TEXT_0);"));
+        assertTrue(generated.contains("appendStatic(buffer, STATIC_TEXT_1);"));
+        assertFalse(generated.contains("caf"));
+
+        String expected = new BBTemplateGen().generateCode("codegen.LongStaticText", page, "LongStaticText.txt.bb");
+        assertTrue(expected.contains("caf"));
+
+        //compiled with the option, which the test build is not
+        Class<?> template = TemplateCompiler.compile(generator, "resources.LongStaticText", page, "LongStaticText.txt.bb");
+        String rendered = TemplateCompiler.render(template, "Ann");
+        assertEquals(LongStaticText.render("Ann"), rendered);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.getMethod("renderTo", java.io.OutputStream.class, String.class).invoke(null, out, "Ann");
+        assertEquals(rendered, new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        //slices are chained into segment sinks as they are
+        SegmentSink sink = new SegmentSink();
+        Method renderInto = template.getMethod("renderInto", Appendable.class, String.class);
+        renderInto.invoke(null, sink, "Ann");
+        List<ByteBuffer> segments = sink.segments();
+        assertEquals(text().getBytes(StandardCharsets.UTF_8).length, segments.get(0).remaining());
+        assertEquals(rendered, sink.toString());
+    }
+
+    @Test
+    public void longStaticTextIsRendered() {
+        assertEquals(text() + "Ann<b>short</b>" + text(), LongStaticText.render("Ann"));
+    }
+}
@@ -0,0 +1,82 @@
+package bb.codegen;
+
+import codegen.*;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StaticTextTest {
+
+    @Test
+    public void adjacentStaticTextIsCoalesced() {
+        String generated = new BBTemplateGen().generateCode("codegen.Coalesced", TemplateCompiler.source("codegen.Coalesced"), "Coalesced.txt.bb");
+        assertTrue(generated.contains("STATIC_0 = \"<p>a1ctrue</p>\";"));
+        assertFalse(generated.contains("STATIC_1"));
+
+        assertEquals("<p>a1ctrue</p>2", Coalesced.render());
+    }
+
+    @Test
+    public void onlyLiteralsRenderingAsWrittenAreFolded() {
+        String generated = new BBTemplateGen().generateCode("codegen.NegativeZero", TemplateCompiler.source("codegen.NegativeZero"), "NegativeZero.txt.bb");
+        assertTrue(generated.contains("toS(buffer, -0);"));
+        assertTrue(generated.contains("\"][-7][0]\""));
+
+        assertEquals("[0][-7][0]", NegativeZero.render());
+    }
+
+    @Test
+    public void literalsAreNotFoldedForCustomBaseClasses() {
+        String source = "<%@ extends bb.runtime.TestTemplateSuperClass %><p>${\"a\"}</p>";
+        String generated = new BBTemplateGen().generateCode("statics.Custom", source, "Custom.bb.txt");
+        assertTrue(generated.contains("toS(buffer, \"a\")"));
+    }
+
+    @Test
+    public void renderBuffersArePresizedFromStaticText() {
+        String generated = new BBTemplateGen().generateCode("codegen.Presized", TemplateCompiler.source("codegen.Presized"), "Presized.txt.bb");
+        assertTrue(generated.contains("setSizeEstimate(18);"));
+        assertTrue(generated.contains("StringBuilder sb = INSTANCE.newBuffer();"));
+
+        assertEquals("<ul><li>0</li><li>1</li></ul>", Presized.render(2));
+        assertEquals("<ul></ul>", Presized.render(0));
+        assertEquals(3499, Presized.render(300).length());
+    }
+
+    @Test
+    public void identicalTextIsSharedAcrossTemplates() throws Exception {
+        assertEquals("<nav>menu</nav>2", SharedFirst.render());
+        assertEquals("<nav>menu</nav>4", SharedSecond.render());
+        //the encodings are handed out once per text, and not just for any text
+        assertSame(staticField(SharedFirst.class, "STATIC_0_BYTES"), staticField(SharedSecond.class, "STATIC_0_BYTES"));
+        assertNotSame(staticField(SharedFirst.class, "STATIC_0_BYTES"), staticField(SharedOther.class, "STATIC_0_BYTES"));
+    }
+
+    private static Object staticField(Class<?> template, String name) throws Exception {
+        Field field = template.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(null);
+    }
+
+    @Test
+    public void escapesAreRenderedVerbatim() {
+        assertEquals("C:\\temp\\new \"quoted\"\t\\u0041\n", Escapes.render());
+    }
+
+    @Test
+    public void largeStaticTextIsSplitIntoSeveralConstants() {
+        //too long for a single class file constant, so it is generated rather than kept as a resource
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 30000; i++) {
+            source.append("\u00e9\\");
+        }
+        Class<?> template = TemplateCompiler.compile(new BBTemplateGen(), "statics.Large", source.toString(), "Large.bb.txt");
+        assertEquals(source.toString(), TemplateCompiler.render(template));
+    }
+}
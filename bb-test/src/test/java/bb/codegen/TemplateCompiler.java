@@ -0,0 +1,109 @@
+package bb.codegen;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles generated template source outside of manifold, so tests can exercise generator options
+ * that the test build itself isn't compiled with. Everything else is checked on the templates under resources.
+ */
+public class TemplateCompiler {
+
+    public static Class<?> compile(BBTemplateGen generator, String fullyQualifiedName, String source, String fileName) {
+        return compile(generator, Collections.singletonMap(fullyQualifiedName, source), fullyQualifiedName, fileName);
+    }
+
+    /**
+     * Generates and compiles several templates together, named by their fully qualified names, and loads one of them
+     */
+    public static Class<?> compile(BBTemplateGen generator, Map<String, String> sources, String fullyQualifiedName) {
+        return compile(generator, sources, fullyQualifiedName, null);
+    }
+
+    private static Class<?> compile(BBTemplateGen generator, Map<String, String> sources, String fullyQualifiedName, String fileName) {
+        try {
+            Path dir = Files.createTempDirectory("bb-codegen");
+            List<String> arguments = new ArrayList<>(Arrays.asList("-proc:none", "-encoding", "UTF-8",
+                    "-classpath", System.getProperty("java.class.path"), "-d", dir.toString()));
+            StringBuilder javaSources = new StringBuilder();
+            for (Map.Entry<String, String> source : sources.entrySet()) {
+                String name = source.getKey();
+                String templateFileName = fileName != null ? fileName : name.substring(name.lastIndexOf('.') + 1) + ".bb.txt";
+                String javaSource = generator.generateCode(name, source.getValue(), templateFileName);
+                if (!generator.getIssues().isEmpty()) {
+                    throw new IllegalStateException(generator.getIssues().getIssues().get(0).getMessage());
+                }
+                Path javaFile = dir.resolve(name.replace('.', File.separatorChar) + ".java");
+                Files.createDirectories(javaFile.getParent());
+                Files.write(javaFile, javaSource.getBytes(StandardCharsets.UTF_8));
+                //the template itself goes next to its class, just like manifold templates are on the classpath
+                Files.write(javaFile.resolveSibling(templateFileName), source.getValue().getBytes(StandardCharsets.UTF_8));
+                arguments.add(javaFile.toString());
+                javaSources.append(javaSource).append("\n");
+            }
+
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            int result = compiler.run(null, null, errors, arguments.toArray(new String[0]));
+            if (result != 0) {
+                throw new IllegalStateException(errors.toString() + "\n" + javaSources);
+            }
+            ClassLoader loader = new URLClassLoader(new URL[]{dir.toUri().toURL()}, TemplateCompiler.class.getClassLoader());
+            return Class.forName(fullyQualifiedName, true, loader);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the .txt.bb source of a test template, to check the code generated for it
+     */
+    public static String source(String fullyQualifiedName) {
+        String resource = "/" + fullyQualifiedName.replace('.', '/') + ".txt.bb";
+        try (InputStream in = TemplateCompiler.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalArgumentException("No template " + resource);
+            }
+            ByteArrayOutputStream source = new ByteArrayOutputStream();
+            byte[] bytes = new byte[4096];
+            for (int read; (read = in.read(bytes)) != -1; ) {
+                source.write(bytes, 0, read);
+            }
+            return new String(source.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String render(Class<?> template, Object... args) {
+        for (Method method : template.getMethods()) {
+            if (method.getName().equals("render") && method.getParameterCount() == args.length &&
+                    (args.length == 0 || !method.getParameterTypes()[0].getName().equals("bb.runtime.ILayout"))) {
+                try {
+                    return (String) method.invoke(null, args);
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                } catch (InvocationTargetException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+        throw new IllegalArgumentException("No render method with " + args.length + " arguments");
+    }
+}
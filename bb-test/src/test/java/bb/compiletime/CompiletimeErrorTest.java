@@ -148,4 +148,21 @@ public class CompiletimeErrorTest {
 
     }
 
+    @Test
+    public void ParallelIncludeErrorTest() {
+        BBTemplateGen generator = new BBTemplateGen();
+        generator.generateCode("testing.tester",
+                "<%@ include parallel Widget(a, f(b, c), d, e, g) %><%@ include parallel Widget(a, b, c, d, e, f) %>",
+                "tester.bb.html");
+
+        List<String> expectedMessages = new ArrayList<>();
+        expectedMessages.add("Invalid include directive, parallel includes take at most 5 arguments");
+
+        assertEquals(expectedMessages.size(), generator.getIssues().getIssues().size());
+        for(int i = 0; i < expectedMessages.size(); i += 1) {
+            assertEquals(generator.getIssues().getIssues().get(i).getMessage(), expectedMessages.get(i));
+        }
+
+    }
+
 }
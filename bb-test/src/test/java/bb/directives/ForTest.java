@@ -0,0 +1,36 @@
+package bb.directives;
+
+import directives.loops.NestedLoops;
+import directives.loops.PrimitiveLoop;
+import directives.loops.SimpleLoop;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertEquals;
+
+public class ForTest {
+    @Test
+    public void loopsExposeTheirState() {
+        assertEquals("[0:ao,1:be,2:co]", SimpleLoop.render(Arrays.asList("a", "b", "c")));
+        assertEquals("[0:ao,1:be,2:co]", SimpleLoop.render(new LinkedList<>(Arrays.asList("a", "b", "c"))));
+        assertEquals("[0:ao]", SimpleLoop.render(Collections.singletonList("a")));
+        assertEquals("", SimpleLoop.render(Collections.emptyList()));
+        assertEquals("", SimpleLoop.render(null));
+    }
+
+    @Test
+    public void loopsNestOverArraysAndCollections() {
+        assertEquals("1,2,3.|00=a 01=b 10=c ",
+                NestedLoops.render(new LinkedHashSet<>(Arrays.asList(1, 2, 3)), new String[][]{{"a", "b"}, {"c"}}));
+    }
+
+    @Test
+    public void primitiveArraysAreWalkedByIndex() {
+        assertEquals("1,2,3|8o10e", PrimitiveLoop.render(new int[]{1, 2, 3}));
+        assertEquals("|8o10e", PrimitiveLoop.render(null));
+    }
+}
@@ -1,9 +1,28 @@
 package bb.directives;
 
+import bb.BBTemplates;
+import bb.runtime.DeferredMarkup;
+import bb.runtime.VirtualThreads;
+import org.junit.After;
 import org.junit.Test;
 import directives.include.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 /**
@@ -36,4 +55,187 @@ public class IncludeTest {
         assertEquals("15", SimpleConditionalInclude.render(true));
         assertEquals("", SimpleConditionalInclude.render(false));
     }
+
+    @After
+    public void resetExecutor() {
+        BBTemplates.resetParallelExecutor();
+        BBTemplates.setDeferredMarkup(DeferredMarkup.HTML);
+        BBTemplates.traceWith((c, t) -> {});
+    }
+
+    @Test
+    public void parallelIncludesKeepTheDocumentOrder() {
+        //the later an include is forked, the sooner it's done
+        AtomicInteger forked = new AtomicInteger();
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        BBTemplates.setParallelExecutor(task -> {
+            int delay = 40 - 10 * forked.getAndIncrement();
+            new Thread(() -> {
+                try {
+                    Thread.sleep(Math.max(0, delay));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                threads.add(Thread.currentThread().getName());
+                task.run();
+            }).start();
+        });
+
+        assertEquals("[a,b,c,Name:CarsonAge:2000]", ParallelInclude.render(Arrays.asList("a", "b", "c")));
+        assertEquals(4, threads.size());
+        assertEquals("[]", ParallelInclude.render(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void aFailingParallelIncludeCancelsTheOthers() throws InterruptedException {
+        List<Class> traced = Collections.synchronizedList(new ArrayList<>());
+        BBTemplates.traceWith((c, t) -> traced.add(c));
+        //the include of null fails right away, the others are only started after the page has failed
+        List<Runnable> held = new ArrayList<>();
+        BBTemplates.setParallelExecutor(task -> {
+            if (held.size() == 1) {
+                new Thread(task).start();
+                held.add(() -> {});
+            } else {
+                held.add(task);
+            }
+        });
+        try {
+            ParallelShouts.render(Arrays.asList("a", null, "c"));
+            fail();
+        } catch (RuntimeException e) {
+            //the failure of the include, possibly mapped to its line
+        }
+        for (Runnable task : held) {
+            task.run();
+        }
+        assertEquals(3, held.size());
+        assertTrue(traced.toString(), !traced.contains(Shout.class));
+
+        BBTemplates.resetParallelExecutor();
+        assertEquals("AB", ParallelShouts.render(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void parallelIncludesRunOnVirtualThreadsFromJava21() {
+        String version = System.getProperty("java.specification.version");
+        boolean java21 = !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+        assertEquals(java21, VirtualThreads.isAvailable());
+        Executor executor = BBTemplates.getParallelExecutor();
+        assertEquals(java21, BBTemplates.useVirtualThreads());
+        if (!java21) {
+            assertSame(executor, BBTemplates.getParallelExecutor());
+            assertSame(executor, VirtualThreads.executorOr(executor));
+            assertNull(VirtualThreads.executorOr(null));
+        } else {
+            assertNotNull(VirtualThreads.executorOr(null));
+        }
+        assertEquals("[a,b,c,Name:CarsonAge:2000]", ParallelInclude.render(Arrays.asList("a", "b", "c")));
+    }
+
+    @Test
+    public void deferredIncludesAreWrittenAfterThePageAsTheyAreDone() throws IOException {
+        BBTemplates.setDeferredMarkup(new DeferredMarkup() {
+            @Override
+            public void placeholder(Appendable buffer, String id) throws IOException {
+                buffer.append("<li id=\"").append(id).append("\"></li>");
+            }
+
+            @Override
+            public void content(Appendable buffer, String id, CharSequence content) throws IOException {
+                buffer.append("(").append(content).append(")");
+            }
+        });
+        //the includes are only run once the page has been flushed, the last one first
+        List<Runnable> forked = Collections.synchronizedList(new ArrayList<>());
+        BBTemplates.setParallelExecutor(forked::add);
+        List<String> flushes = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                String written = new String(toByteArray(), StandardCharsets.UTF_8);
+                if (flushes.isEmpty()) {
+                    new Thread(() -> {
+                        for (int i = forked.size() - 1; i >= 0; i--) {
+                            forked.get(i).run();
+                        }
+                    }).start();
+                }
+                if (flushes.isEmpty() || !flushes.get(flushes.size() - 1).equals(written)) {
+                    flushes.add(written);
+                }
+            }
+        };
+
+        DeferredInclude.renderTo(bytes, Arrays.asList("a", "b", "c"));
+        String page = flushes.get(0);
+        assertTrue(page, page.matches("<ul>(<li id=\"bb-deferred-\\d+\"></li>){3}</ul>"));
+        assertEquals(Arrays.asList(page, page + "(c)", page + "(c)(b)", page + "(c)(b)(a)"), flushes);
+
+        assertEquals("<ul></ul>", DeferredInclude.render(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void deferredIncludesOfNestedTemplatesAreWrittenAfterTheOutermostPage() throws IOException {
+        BBTemplates.setDeferredMarkup(new DeferredMarkup() {
+            @Override
+            public void placeholder(Appendable buffer, String id) throws IOException {
+                buffer.append("<li></li>");
+            }
+
+            @Override
+            public void content(Appendable buffer, String id, CharSequence content) throws IOException {
+                buffer.append("(").append(content).append(")");
+            }
+        });
+        //the includes are only run once the page has been flushed
+        List<Runnable> forked = Collections.synchronizedList(new ArrayList<>());
+        BBTemplates.setParallelExecutor(forked::add);
+        List<String> flushes = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                if (flushes.isEmpty()) {
+                    new Thread(() -> forked.forEach(Runnable::run)).start();
+                }
+                flushes.add(new String(toByteArray(), StandardCharsets.UTF_8));
+            }
+        };
+
+        NestedDeferredInclude.renderTo(bytes, Arrays.asList("a", "b"));
+        assertEquals("<p><ul><li></li><li></li></ul></p>", flushes.get(0));
+        assertEquals("<p><ul><li></li><li></li></ul></p>(a)(b)", flushes.get(flushes.size() - 1));
+
+        //without a stream to follow, the includes render in place
+        BBTemplates.resetParallelExecutor();
+        assertEquals("<p><ul>a</ul></p>", NestedDeferredInclude.render(Collections.singletonList("a")));
+    }
+
+    @Test
+    public void onlyStreamedHtmlDefersItsIncludes() {
+        List<Runnable> forked = Collections.synchronizedList(new ArrayList<>());
+        BBTemplates.setParallelExecutor(forked::add);
+
+        assertEquals("<ul>ab</ul>", DeferredInclude.render(Arrays.asList("a", "b")));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeferredText.renderTo(bytes, Arrays.asList("a", "b"));
+        assertEquals("<ul>ab</ul>", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        assertTrue(forked.isEmpty());
+    }
+
+    @Test
+    public void deferredIncludesSwapThemselvesIn() throws IOException {
+        StringBuilder html = new StringBuilder();
+        DeferredMarkup.HTML.placeholder(html, "bb-deferred-1");
+        DeferredMarkup.HTML.content(html, "bb-deferred-1", "<b>x</b>");
+        assertTrue(html.toString(), html.toString().startsWith("<div id=\"bb-deferred-1\"></div>" +
+                "<template id=\"bb-deferred-1-content\"><b>x</b></template><script>"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeferredInclude.renderTo(bytes, Arrays.asList("a", "b"));
+        String page = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(page, page.matches("<ul><div id=\"(bb-deferred-\\d+)\"></div><div id=\"(bb-deferred-\\d+)\"></div></ul>" +
+                "(<template id=\"\\1-content\">a</template>.*\\n<template id=\"\\2-content\">b</template>.*\\n" +
+                "|<template id=\"\\2-content\">b</template>.*\\n<template id=\"\\1-content\">a</template>.*\\n)"));
+    }
 }
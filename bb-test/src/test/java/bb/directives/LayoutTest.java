@@ -6,6 +6,7 @@ import org.junit.Test;
 import directives.layouts.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  * Created by hkalidhindi on 7/17/2017.
@@ -48,4 +49,17 @@ public class LayoutTest {
     public void LayoutPrecedenceTest() {
         assertEquals("HeaderH2ContentF2Footer", HasNestedLayout.render());
     }
+
+    @Test
+    public void StaticLayoutsAreFlattened() {
+        assertEquals("HeaderH2", IsAndHasLayout.asLayout().staticHeader());
+        assertEquals("F2Footer", IsAndHasLayout.asLayout().staticFooter());
+        assertEquals("HeaderH2ContentF2Footer", HasNestedLayout.render());
+    }
+
+    @Test
+    public void DynamicLayoutsAreNotFlattened() {
+        assertNull(IsDynamicLayout.asLayout().staticHeader());
+        assertEquals("Header2017DynamicF3Footer", HasDynamicLayout.render());
+    }
 }
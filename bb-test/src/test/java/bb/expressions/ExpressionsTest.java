@@ -1,9 +1,14 @@
 package bb.expressions;
 
+import bb.codegen.BBTemplateGen;
 import org.junit.Test;
 import expressions.*;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ExpressionsTest {
 
@@ -17,4 +22,40 @@ public class ExpressionsTest {
         assertEquals("16", MethodCallExpressionAlt.render());
     }
 
+    @Test
+    public void typedExpressionsWork() {
+        assertEquals("-42 9000000000 x true sb [] 7 1.5 -9223372036854775808", TypedExpressions.render());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TypedExpressions.renderTo(out);
+        assertEquals(TypedExpressions.render(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void typedExpressionsUseOverriddenToS() {
+        assertEquals("[1] [s] [c] [false]", CustomToSExpressions.render());
+    }
+
+    @Test
+    public void overriddenToSIsNotBypassedByTheTypedOverloadsOfASuperclass() {
+        //toS(Object) escapes, and the toS(String) overload quotes strings on top of that, picked by static type
+        assertEquals("'&lt;b>' 1 &lt;i> &lt; &lt;b>", EscapingToSExpressions.render());
+    }
+
+    @Test
+    public void typedToSIsOnlyCalledForSuperclassesDeclaringIt() {
+        String expression = "<% String s = \"s\"; %>${s}";
+        //the typed overloads of the base class, or of a superclass overriding them along with toS(Object)
+        assertTrue(generate(null, expression).contains("toS(buffer, s);"));
+        assertTrue(generate("bb.runtime.RawTemplateSuperClass", expression).contains("toS(buffer, s);"));
+        //a superclass that only overrides or adds single argument toS methods, or one that isn't built yet
+        assertTrue(generate("bb.runtime.BracketingTemplateSuperClass", expression).contains("buffer.append(toS(s));"));
+        assertTrue(generate("bb.runtime.EscapingTemplateSuperClass", expression).contains("buffer.append(toS(s));"));
+        assertTrue(generate("bb.runtime.NotBuiltYet", expression).contains("buffer.append(toS(s));"));
+    }
+
+    private static String generate(String superClass, String source) {
+        String extend = superClass == null ? "" : "<%@ extends " + superClass + " %>";
+        return new BBTemplateGen().generateCode("expressions.Generated", extend + source, "Generated.txt.bb");
+    }
+
 }
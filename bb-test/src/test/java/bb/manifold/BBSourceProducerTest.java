@@ -0,0 +1,46 @@
+package bb.manifold;
+
+import bb.codegen.BBTemplateGen;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BBSourceProducerTest {
+    private String _mode;
+
+    @Before
+    public void setUp() {
+        _mode = System.getProperty(BBSourceProducer.MODE_PROPERTY);
+    }
+
+    @After
+    public void tearDown() {
+        if (_mode == null) {
+            System.clearProperty(BBSourceProducer.MODE_PROPERTY);
+        } else {
+            System.setProperty(BBSourceProducer.MODE_PROPERTY, _mode);
+        }
+    }
+
+    @Test
+    public void modesAreNamedInAnyCase() {
+        System.setProperty(BBSourceProducer.MODE_PROPERTY, " Production ");
+        assertEquals(BBTemplateGen.Mode.PRODUCTION, BBSourceProducer.getMode());
+        assertNull(BBSourceProducer.getModeWarning());
+
+        System.clearProperty(BBSourceProducer.MODE_PROPERTY);
+        assertEquals(BBTemplateGen.Mode.DEVELOPMENT, BBSourceProducer.getMode());
+        assertNull(BBSourceProducer.getModeWarning());
+    }
+
+    @Test
+    public void unknownModesFallBackToDevelopmentWithAWarning() {
+        System.setProperty(BBSourceProducer.MODE_PROPERTY, "prod");
+        assertEquals(BBTemplateGen.Mode.DEVELOPMENT, BBSourceProducer.getMode());
+        assertTrue(BBSourceProducer.getModeWarning().contains("bb.codegen.mode 'prod'"));
+    }
+}
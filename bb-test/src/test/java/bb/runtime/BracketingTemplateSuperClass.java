@@ -0,0 +1,8 @@
+package bb.runtime;
+
+public class BracketingTemplateSuperClass extends BaseBBTemplate {
+    @Override
+    public String toS(Object o) {
+        return "[" + o + "]";
+    }
+}
@@ -0,0 +1,127 @@
+package bb.runtime;
+
+import bb.BBTemplates;
+import directives.layouts.HasDynamicLayout;
+import directives.layouts.HasNestedLayout;
+import directives.layouts.PlainFile;
+import directives.params.MultipleParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ByteSinkTest {
+
+    @Test
+    public void charactersAreEncodedAsUtf8() throws IOException {
+        String text = "ascii \u00e9\u20ac \ud83d\ude00 end";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStreamSink sink = new OutputStreamSink(out, 16);
+        sink.append(text, 0, 13).append(text.charAt(13)).append(text.substring(14));
+        sink.flush();
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+    }
+
+    @Test
+    public void unpairedSurrogatesBecomeQuestionMarks() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStreamSink sink = new OutputStreamSink(out);
+        sink.append("a\ud83db").append('\ude00');
+        sink.write("c".getBytes(StandardCharsets.UTF_8));
+        sink.append('\ud83d');
+        sink.flush();
+        assertEquals("a?b?c?", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void renderToWritesTheRenderedBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HasNestedLayout.renderTo(out);
+        assertEquals(HasNestedLayout.render(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        out.reset();
+        MultipleParams.renderTo(out, "Edward", 19);
+        assertEquals("Name:EdwardAge:19", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void renderToWriterStreamsInBoundedChunks() {
+        int[] largestWrite = {0};
+        int[] flushes = {0};
+        StringWriter out = new StringWriter() {
+            @Override
+            public void write(char[] chars, int offset, int length) {
+                largestWrite[0] = Math.max(largestWrite[0], length);
+                super.write(chars, offset, length);
+            }
+
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+        BBTemplates.setFlushThreshold(32);
+        try {
+            HasNestedLayout.renderTo(out);
+        } finally {
+            BBTemplates.setFlushThreshold(8192);
+        }
+        String rendered = HasNestedLayout.render();
+        assertEquals(rendered, out.toString());
+        assertTrue(largestWrite[0] <= 32);
+        assertTrue(flushes[0] >= rendered.length() / 32);
+
+        StringWriter whole = new StringWriter();
+        MultipleParams.renderTo(whole, "Edward", 19);
+        assertEquals("Name:EdwardAge:19", whole.toString());
+    }
+
+    @Test
+    public void writerSinksWriteLargeTextThrough() throws IOException {
+        StringWriter out = new StringWriter();
+        WriterSink sink = new WriterSink(out, 32, false);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append(i);
+        }
+        sink.append('[').append(large).append(large.toString()).append("]");
+        sink.flush();
+        assertEquals("[" + large + large + "]", out.toString());
+    }
+
+    @Test
+    public void earlyFlushSendsTheWholeHeaderFirst() throws IOException {
+        assertEquals("HeaderH2", firstFlush(HasNestedLayout::renderInto));
+    }
+
+    @Test
+    public void pagesWithoutAStaticHeaderAreNotFlushedEarly() throws IOException {
+        assertEquals(PlainFile.render(), firstFlush(PlainFile::renderInto));
+        assertEquals(HasDynamicLayout.render(), firstFlush(HasDynamicLayout::renderInto));
+    }
+
+    //what was sent by the time the sink was first flushed, by the render or by the flush at its end
+    private static String firstFlush(Consumer<Appendable> render) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        String[] firstFlush = {null};
+        OutputStreamSink sink = new OutputStreamSink(new java.io.FilterOutputStream(bytes) {
+            @Override
+            public void flush() {
+                if (firstFlush[0] == null) {
+                    firstFlush[0] = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+                }
+            }
+        });
+        sink.setEarlyFlush(true);
+        render.accept(sink);
+        sink.flush();
+        return firstFlush[0];
+    }
+}
@@ -0,0 +1,12 @@
+package bb.runtime;
+
+public class EscapingTemplateSuperClass extends RawTemplateSuperClass {
+    @Override
+    public String toS(Object o) {
+        return super.toS(o).replace("<", "&lt;");
+    }
+
+    public String toS(String s) {
+        return "'" + toS((Object) s) + "'";
+    }
+}
@@ -0,0 +1,20 @@
+package bb.runtime;
+
+import java.io.IOException;
+
+/**
+ * Renders like BBSparkTemplate does, with its own typed toS overloads
+ */
+public class RawTemplateSuperClass extends BaseBBTemplate {
+    @Override
+    public String toS(Object o) {
+        return o == null ? "" : o.toString();
+    }
+
+    @Override
+    public void toS(Appendable buffer, CharSequence s) throws IOException {
+        if (s != null) {
+            buffer.append(s);
+        }
+    }
+}
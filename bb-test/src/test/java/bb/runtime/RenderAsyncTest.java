@@ -0,0 +1,78 @@
+package bb.runtime;
+
+import bb.BBTemplates;
+import bb.codegen.BBTemplateGen;
+import bb.codegen.TemplateCompiler;
+import directives.params.MultipleParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public class RenderAsyncTest {
+    private static final ThreadLocal<String> CONTEXT = new ThreadLocal<>();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor(task -> new Thread(task, "renderer"));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+        BBTemplates.traceWith((c, t) -> {});
+        BBTemplates.setAsyncExecutorWrapper(e -> e);
+    }
+
+    @Test
+    public void templatesRenderOnTheGivenExecutor() throws Exception {
+        CompletableFuture<String> output = MultipleParams.renderAsync(executor, "Edward", 19);
+        assertEquals("Name:EdwardAge:19", output.get());
+
+        String rendered = MultipleParams.renderAsync(executor, null, "Edward", 19)
+                .thenApply(String::toUpperCase)
+                .get();
+        assertEquals("NAME:EDWARDAGE:19", rendered);
+    }
+
+    @Test
+    public void tracersSeeTheContextOfTheCaller() throws Exception {
+        Class<?> template = TemplateCompiler.compile(new BBTemplateGen(), "async.Traced",
+                "<%@ params(String name) %>Hi ${name}", "Traced.bb.txt");
+        List<String> traced = Collections.synchronizedList(new ArrayList<>());
+        BBTemplates.traceWith((c, t) -> traced.add(c.getSimpleName() + " in " + CONTEXT.get() + " on " + Thread.currentThread().getName()));
+        BBTemplates.setAsyncExecutorWrapper(delegate -> {
+            Executor propagating = task -> {
+                String context = CONTEXT.get();
+                delegate.execute(() -> {
+                    CONTEXT.set(context);
+                    try {
+                        task.run();
+                    } finally {
+                        CONTEXT.remove();
+                    }
+                });
+            };
+            return propagating;
+        });
+
+        CONTEXT.set("request-1");
+        try {
+            Object output = template.getMethod("renderAsync", Executor.class, String.class).invoke(null, executor, "Bob");
+            assertEquals("Hi Bob", ((CompletableFuture<?>) output).get());
+        } finally {
+            CONTEXT.remove();
+        }
+        assertEquals(Collections.singletonList("Traced in request-1 on renderer"), traced);
+    }
+}
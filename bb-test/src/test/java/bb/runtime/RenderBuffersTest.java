@@ -0,0 +1,102 @@
+package bb.runtime;
+
+import bb.BBTemplates;
+import codegen.Presized;
+import directives.layouts.HasNestedLayout;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RenderBuffersTest {
+
+    @Before
+    @After
+    public void dropBuffers() {
+        RenderBuffers.releaseThread();
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        StringBuilder outer = RenderBuffers.acquire(100);
+        StringBuilder inner = RenderBuffers.acquire(10);
+        assertNotSame(outer, inner);
+        outer.append("outer");
+        RenderBuffers.release(inner);
+        RenderBuffers.release(outer);
+
+        StringBuilder again = RenderBuffers.acquire(50);
+        assertSame(outer, again);
+        assertEquals(0, again.length());
+        assertTrue(again.capacity() >= 100);
+    }
+
+    @Test
+    public void unreleasedBuffersAreReturnedByReleaseAll() {
+        StringBuilder forgotten = RenderBuffers.acquire(16);
+        assertEquals(0, RenderBuffers.pooledCount());
+        RenderBuffers.releaseAll();
+        assertEquals(1, RenderBuffers.pooledCount());
+        assertSame(forgotten, RenderBuffers.acquire(16));
+
+        RenderBuffers.releaseThread();
+        assertEquals(0, RenderBuffers.pooledCount());
+    }
+
+    @Test
+    public void poolsAreBounded() {
+        int maxCapacity = BBTemplates.getMaxRetainedBufferCapacity();
+        RenderBuffers.release(new StringBuilder(maxCapacity + 1).append(new char[maxCapacity + 1]));
+        assertEquals(0, RenderBuffers.pooledCount());
+
+        StringBuilder overshot = new StringBuilder(maxCapacity + 1).append("page");
+        RenderBuffers.release(overshot);
+        assertEquals(1, RenderBuffers.pooledCount());
+        assertSame(overshot, RenderBuffers.acquire(16));
+        assertTrue(overshot.capacity() <= maxCapacity);
+        RenderBuffers.releaseThread();
+
+        for (int i = 0; i < RenderBuffers.MAX_POOLED + 2; i++) {
+            RenderBuffers.release(new StringBuilder());
+        }
+        assertEquals(RenderBuffers.MAX_POOLED, RenderBuffers.pooledCount());
+    }
+
+    @Test
+    public void renderGivesItsBufferBack() {
+        String first = HasNestedLayout.render();
+        assertEquals(1, RenderBuffers.pooledCount());
+        assertEquals(first, HasNestedLayout.render());
+        assertEquals(1, RenderBuffers.pooledCount());
+    }
+
+    @Test
+    public void largePagesReuseTheirBuffer() {
+        String page = Presized.render(15000);
+        assertTrue(page.length() > 150_000);
+        assertEquals(1, RenderBuffers.pooledCount());
+        StringBuilder buffer = RenderBuffers.acquire(16);
+        assertTrue(buffer.capacity() >= page.length());
+        RenderBuffers.release(buffer);
+
+        assertEquals(page, Presized.render(15000));
+        assertEquals(1, RenderBuffers.pooledCount());
+        assertSame(buffer, RenderBuffers.acquire(16));
+    }
+
+    @Test
+    public void pagesLargerThanTheCapAreNotKept() {
+        int maxCapacity = BBTemplates.getMaxRetainedBufferCapacity();
+        try {
+            BBTemplates.setMaxRetainedBufferCapacity(1024);
+            Presized.render(15000);
+            assertEquals(0, RenderBuffers.pooledCount());
+        } finally {
+            BBTemplates.setMaxRetainedBufferCapacity(maxCapacity);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package bb.runtime;
+
+import bb.BBTemplates;
+import directives.params.MultipleParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RenderPublisherTest {
+    private static final String PIECE = "0123456789abcdefghijklmnopqrs\u00e9";
+
+    private final AtomicInteger appended = new AtomicInteger();
+    private final CountDownLatch rendered = new CountDownLatch(1);
+    private final Executor executor = task -> new Thread(() -> {
+        task.run();
+        rendered.countDown();
+    }).start();
+
+    @Before
+    public void setUp() {
+        //each piece is a chunk of its own
+        BBTemplates.setFlushThreshold(32);
+    }
+
+    @After
+    public void tearDown() {
+        BBTemplates.setFlushThreshold(8192);
+    }
+
+    @Test
+    public void chunksAreRenderedAsTheyAreRequested() throws Exception {
+        Recorder recorder = new Recorder();
+        new RenderPublisher(pieces(10), executor).subscribe(recorder);
+        assertEquals(0, appended.get());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int received = 1; ; received++) {
+            recorder.subscription.request(1);
+            Object signal = recorder.signals.poll(5, TimeUnit.SECONDS);
+            if ("complete".equals(signal)) {
+                break;
+            }
+            ByteBuffer chunk = (ByteBuffer) signal;
+            output.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            //the render is at most a buffered piece and a piece waiting for demand ahead of the chunks requested
+            assertTrue(appended.get() <= received + 2);
+        }
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            expected.append(PIECE);
+        }
+        assertEquals(expected.toString(), new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void cancellingStopsTheRender() throws Exception {
+        Recorder recorder = new Recorder();
+        new RenderPublisher(pieces(1000), executor).subscribe(recorder);
+        recorder.subscription.request(2);
+        recorder.signals.poll(5, TimeUnit.SECONDS);
+        recorder.signals.poll(5, TimeUnit.SECONDS);
+        recorder.subscription.cancel();
+
+        assertTrue(rendered.await(5, TimeUnit.SECONDS));
+        assertTrue(appended.get() <= 4);
+        assertTrue(recorder.signals.isEmpty());
+    }
+
+    @Test
+    public void invalidRequestsAndSecondSubscribersFail() throws Exception {
+        RenderPublisher publisher = new RenderPublisher(out -> MultipleParams.renderInto(out, "Edward", 19), executor);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.subscription.request(0);
+        assertTrue(recorder.signals.poll(5, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+
+        Recorder second = new Recorder();
+        publisher.subscribe(second);
+        assertTrue(second.signals.poll() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void templatesArePublishedWhole() throws Exception {
+        BBTemplates.setFlushThreshold(8192);
+        Recorder recorder = new Recorder();
+        new RenderPublisher(out -> MultipleParams.renderInto(out, "Edward", 19), executor).subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        ByteBuffer chunk = (ByteBuffer) recorder.signals.poll(5, TimeUnit.SECONDS);
+        assertEquals("Name:EdwardAge:19", StandardCharsets.UTF_8.decode(chunk).toString());
+        assertEquals("complete", recorder.signals.poll(5, TimeUnit.SECONDS));
+    }
+
+    private Consumer<Appendable> pieces(int count) {
+        return out -> {
+            try {
+                for (int i = 0; i < count; i++) {
+                    appended.incrementAndGet();
+                    out.append(PIECE);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    private static class Recorder implements RenderPublisher.Subscriber {
+        final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+        RenderPublisher.Subscription subscription;
+
+        @Override
+        public void onSubscribe(RenderPublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ByteBuffer chunk) {
+            signals.add(chunk);
+        }
+
+        @Override
+        public void onError(Throwable failure) {
+            signals.add(failure);
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add("complete");
+        }
+    }
+}
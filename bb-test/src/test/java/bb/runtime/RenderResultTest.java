@@ -0,0 +1,59 @@
+package bb.runtime;
+
+import directives.layouts.HasNestedLayout;
+import directives.params.MultipleParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RenderResultTest {
+
+    @Before
+    public void dropBuffers() {
+        RenderBuffers.releaseThread();
+    }
+
+    @Test
+    public void resultsAreWrittenWithoutCopies() throws IOException {
+        RenderResult result = MultipleParams.renderResult("Edward", 19);
+        assertEquals("Name:EdwardAge:19", result.toString());
+        assertEquals(17, result.length());
+        assertEquals('E', result.charAt(5));
+
+        StringWriter writer = new StringWriter();
+        result.writeTo(writer);
+        assertEquals("Name:EdwardAge:19", writer.toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        result.writeTo(out);
+        assertEquals("Name:EdwardAge:19", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void releasedResultsGiveTheirBufferBack() {
+        RenderResult result = HasNestedLayout.renderResult();
+        assertEquals(HasNestedLayout.render(), result.toString());
+        //render() gave back its own buffer, the result's buffer is still out
+        assertEquals(1, RenderBuffers.pooledCount());
+        RenderBuffers.releaseAll();
+        assertEquals(1, RenderBuffers.pooledCount());
+
+        result.release();
+        assertEquals(2, RenderBuffers.pooledCount());
+        try {
+            result.length();
+            fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        result.release();
+        assertEquals(2, RenderBuffers.pooledCount());
+    }
+}
@@ -0,0 +1,36 @@
+package bb.runtime;
+
+import org.junit.Test;
+
+import runtime.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RuntimeErrorLineTest {
+
+    @Test
+    public void sectionErrorIsMappedToTemplateLine() {
+        assertErrorAt(9, "BasicRuntimeError.txt.bb", BasicRuntimeError::render);
+    }
+
+    @Test
+    public void layoutErrorIsMappedToTemplateLine() {
+        assertErrorAt(4, "LayoutWRuntimeError.txt.bb", HasLayoutRuntimeError::render);
+    }
+
+    private void assertErrorAt(int line, String fileName, Runnable render) {
+        try {
+            render.run();
+            fail("Expected a BBRuntimeException");
+        } catch (BBRuntimeException e) {
+            for (StackTraceElement element : e.getStackTrace()) {
+                if (fileName.equals(element.getFileName())) {
+                    assertEquals(line, element.getLineNumber());
+                    return;
+                }
+            }
+            fail("No stack element for " + fileName);
+        }
+    }
+}
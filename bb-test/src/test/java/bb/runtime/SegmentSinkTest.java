@@ -0,0 +1,140 @@
+package bb.runtime;
+
+import directives.layouts.HasNestedLayout;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentSinkTest {
+
+    @Test
+    public void largeStaticTextIsReferenced() throws IOException {
+        byte[] large = new byte[SegmentSink.REFERENCE_THRESHOLD];
+        Arrays.fill(large, (byte) 'x');
+        SegmentSink sink = new SegmentSink();
+        sink.append("before \u20ac");
+        sink.writeSegment(large);
+        sink.append("after");
+
+        List<ByteBuffer> segments = sink.segments();
+        assertEquals(3, segments.size());
+        assertTrue(segments.get(1).isReadOnly());
+        assertEquals(large.length, segments.get(1).remaining());
+        assertEquals("before \u20ac" + new String(large, StandardCharsets.UTF_8) + "after", sink.toString());
+        assertEquals(sink.toByteArray().length, sink.size());
+    }
+
+    @Test
+    public void referencedSegmentsAreWrittenFromTheirArrays() throws IOException {
+        byte[] large = new byte[SegmentSink.REFERENCE_THRESHOLD];
+        Arrays.fill(large, (byte) 'x');
+        SegmentSink sink = new SegmentSink();
+        sink.append("before");
+        sink.writeSegment(large);
+        sink.writeSegment(ByteBuffer.wrap(large, 1, 2));
+        sink.append("after");
+
+        List<byte[]> arrays = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                arrays.add(b);
+                super.write(b, off, len);
+            }
+        };
+        sink.writeTo(out);
+        assertEquals(4, arrays.size());
+        assertSame(large, arrays.get(1));
+        assertSame(large, arrays.get(2));
+        assertEquals("before" + new String(large, StandardCharsets.UTF_8) + "xxafter", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void segmentsAreChainedAndPooled() throws IOException {
+        SegmentSink.Pool pool = new SegmentSink.Pool(64, true, 8);
+        SegmentSink sink = new SegmentSink(pool);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sink.appendDecimal(i).append(',');
+            expected.append(i).append(',');
+        }
+        assertEquals(expected.toString(), sink.toString());
+        assertTrue(sink.segments().size() > 1);
+
+        sink.release();
+        assertEquals(0, sink.size());
+        assertEquals(5, pool.getPooledCount());
+        ByteBuffer reused = pool.acquire();
+        assertTrue(reused.isDirect());
+        assertEquals(0, reused.position());
+        pool.release(reused);
+
+        sink.append("again");
+        assertEquals("again", sink.toString());
+        assertEquals(4, pool.getPooledCount());
+    }
+
+    @Test
+    public void segmentsAreWrittenToGatheringChannels() throws IOException {
+        SegmentSink sink = new SegmentSink();
+        HasNestedLayout.renderInto(sink);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        //writes at most 7 bytes per call, so the sink has to resume partially written segments
+        WritableByteChannel target = Channels.newChannel(out);
+        GatheringByteChannel channel = new GatheringByteChannel() {
+            public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+                ByteBuffer src = srcs[offset];
+                ByteBuffer chunk = src.duplicate();
+                chunk.limit(Math.min(src.limit(), src.position() + 7));
+                int written = target.write(chunk);
+                src.position(src.position() + written);
+                return written;
+            }
+
+            public long write(ByteBuffer[] srcs) throws IOException {
+                return write(srcs, 0, srcs.length);
+            }
+
+            public int write(ByteBuffer src) throws IOException {
+                return target.write(src);
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+        assertEquals(sink.size(), sink.writeTo(channel));
+        assertEquals(HasNestedLayout.render(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        out.reset();
+        sink.writeTo(out);
+        assertEquals(HasNestedLayout.render(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void plainSinksCopySegments() throws IOException {
+        byte[] text = "static".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStreamSink sink = new OutputStreamSink(out);
+        sink.writeSegment(text);
+        sink.flush();
+        assertEquals("static", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,26 @@
+package bb.runtime;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SizeEstimateTest {
+
+    @Test
+    public void estimatesGrowAtOnceAndShrinkSlowly() {
+        assertEquals(5000, BaseBBTemplate.nextSizeEstimate(100, 5000));
+        assertEquals(4375, BaseBBTemplate.nextSizeEstimate(5000, 0));
+        int estimate = 5000;
+        for (int i = 0; i < 100; i++) {
+            estimate = BaseBBTemplate.nextSizeEstimate(estimate, 1000);
+        }
+        assertTrue(estimate >= 1000 && estimate < 1010);
+    }
+
+    @Test
+    public void buffersAreBounded() {
+        assertTrue(BaseBBTemplate.newBuffer(1000).capacity() >= 1000);
+        assertTrue(BaseBBTemplate.newBuffer(Integer.MAX_VALUE / 2).capacity() <= 1 << 20);
+    }
+}